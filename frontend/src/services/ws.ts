@@ -1,9 +1,14 @@
+import { AuthService } from './auth';
+
 export class WS {
+  private static readonly ACK_WINDOW = 8; // same as FileRelay.WINDOW on the server
   private ws?: WebSocket;
   private url: string;
   private timer?: number;
   private reconnectTimer?: number;
   private currentUser: string = 'frontend-dev';
+  private pendingAcks = new Map<string, (ack: any) => void>();
+  private fileStatusListeners = new Map<string, (status: any) => void>();
 
   constructor(url: string) {
     this.url = url;
@@ -21,7 +26,9 @@ export class WS {
   }
 
   connect(onMsg: (m: any) => void) {
-    this.ws = new WebSocket(this.url);
+    // 浏览器的 WebSocket 不能带请求头，JWT 作为子协议 bearer.<token> 在握手时验证
+    const token = AuthService.getToken();
+    this.ws = token ? new WebSocket(this.url, [`bearer.${token}`]) : new WebSocket(this.url);
 
     this.ws.onopen = () => {
       console.log('WebSocket Connected');
@@ -40,10 +47,25 @@ export class WS {
     };
 
     this.ws.onmessage = (e) => {
+      let parsed: any;
       try {
-        onMsg(JSON.parse(e.data));
+        parsed = JSON.parse(e.data);
       } catch {
-        /* ignore invalid JSON */
+        return; /* ignore invalid JSON */
+      }
+      // 服务端会把同一时刻发给我们的多条消息合并成一个 JSON 数组帧
+      for (const msg of Array.isArray(parsed) ? parsed : [parsed]) {
+        if (!msg || typeof msg !== 'object') continue;
+        try {
+          if (msg.type === 'ACK' && msg.payload?.msg_ref) {
+            this.pendingAcks.get(msg.payload.msg_ref)?.(msg);
+          } else if (msg.type === 'FILE_STATUS' && msg.payload?.file_id) {
+            this.fileStatusListeners.get(msg.payload.file_id)?.(msg);
+          }
+          onMsg(msg);
+        } catch {
+          /* one bad message must not drop the rest of the frame */
+        }
       }
     };
 
@@ -82,7 +104,8 @@ export class WS {
     this.ws?.send(JSON.stringify(obj));
   }
 
-  async sendFile(file: File, to: string) {
+  // relay: pipe the chunks to an online recipient through the server without storing them
+  async sendFile(file: File, to: string, options: { relay?: boolean } = {}) {
     const fileId = this.generateFileId();
     const chunkSize = 256 * 1024; // 256KB chunks
     const totalChunks = Math.ceil(file.size / chunkSize);
@@ -102,42 +125,39 @@ export class WS {
         name: file.name,
         size: file.size,
         sha256: sha256,
-        mode: to === "*" ? "public" : "dm"
+        chunk_size: chunkSize,
+        mode: to === "*" ? "public" : (options.relay ? "relay" : "dm")
       },
       sig: "dev-mock"
     };
 
+    // The server answers "exists" when it already stores this content, with the
+    // indices of the chunks to send as proof that we have it
+    const startAck = this.waitForAck(fileStart.nonce, 5000);
     this.send(fileStart);
+    const startReply = await startAck;
+    const startStatus = startReply?.payload?.status;
+    const alreadyStored = startStatus === 'exists';
+    const proofChunks: number[] = alreadyStored ? (startReply?.payload?.proof ?? []) : [];
+
+    // At most ACK_WINDOW chunks unacknowledged. Relay: the recipient ACKs; if it goes
+    // offline the server stores the file instead and sends FILE_STATUS. Stored: the
+    // server ACKs once a chunk is written, later when over its bandwidth budget.
+    let relaying = startStatus === 'relay';
+    const unacked: Promise<any>[] = [];
+    this.fileStatusListeners.set(fileId, () => {
+      relaying = false;
+      unacked.length = 0; // the recipient will not ACK those any more
+    });
 
     // Send chunks with delay to respect rate limiting
-    for (let i = 0; i < totalChunks; i++) {
-      const start = i * chunkSize;
-      const end = Math.min(start + chunkSize, file.size);
-      const chunk = file.slice(start, end);
-
-      const arrayBuffer = await chunk.arrayBuffer();
-      const uint8Array = new Uint8Array(arrayBuffer);
-
-      // 安全的方式转换大数据，避免栈溢出
-      let binaryString = '';
-      for (let i = 0; i < uint8Array.length; i++) {
-        binaryString += String.fromCharCode(uint8Array[i]);
-      }
-      const base64Data = btoa(binaryString);
+    for (let i = 0; !alreadyStored && i < totalChunks; i++) {
+      const fileChunk = await this.buildFileChunk(file, fileId, to, i, chunkSize);
 
-      const fileChunk = {
-        type: "FILE_CHUNK",
-        from: this.currentUser,
-        to: to,
-        ts: Math.floor(Date.now() / 1000),
-        nonce: this.generateNonce(),
-        payload: {
-          file_id: fileId,
-          index: i,
-          ciphertext: base64Data
-        },
-        sig: "dev-mock"
-      };
+      unacked.push(this.waitForAck(fileChunk.nonce, 30000));
+      if (unacked.length > WS.ACK_WINDOW) {
+        await unacked.shift();
+      }
 
       this.send(fileChunk);
 
@@ -146,6 +166,23 @@ export class WS {
         await new Promise(resolve => setTimeout(resolve, 200));
       }
     }
+    this.fileStatusListeners.delete(fileId);
+
+    for (const i of proofChunks) {
+      const proofChunk = await this.buildFileChunk(file, fileId, to, i, chunkSize);
+      const proofAck = this.waitForAck(proofChunk.nonce, 30000);
+      this.send(proofChunk);
+      await proofAck;
+    }
+
+    // Fell back to store-and-forward: resend what the server did not keep
+    if (startStatus === 'relay' && !relaying) {
+      const missing = await this.queryMissingChunks(fileId, to, totalChunks);
+      for (const i of missing) {
+        this.send(await this.buildFileChunk(file, fileId, to, i, chunkSize));
+        await new Promise(resolve => setTimeout(resolve, 200));
+      }
+    }
 
     // Send FILE_END (include file metadata for other users)
     const fileEnd = {
@@ -166,12 +203,94 @@ export class WS {
     console.log(`[FileTransfer] Sent file: ${file.name} (${file.size} bytes, ${totalChunks} chunks)`);
   }
 
+  private async buildFileChunk(file: File, fileId: string, to: string, i: number, chunkSize: number) {
+    const start = i * chunkSize;
+    const end = Math.min(start + chunkSize, file.size);
+    const chunk = file.slice(start, end);
+
+    const arrayBuffer = await chunk.arrayBuffer();
+    const uint8Array = new Uint8Array(arrayBuffer);
+
+    // 安全的方式转换大数据，避免栈溢出
+    let binaryString = '';
+    for (let i = 0; i < uint8Array.length; i++) {
+      binaryString += String.fromCharCode(uint8Array[i]);
+    }
+    const base64Data = btoa(binaryString);
+    const chunkSha256 = await this.sha256Hex(arrayBuffer);
+
+    const fileChunk = {
+      type: "FILE_CHUNK",
+      from: this.currentUser,
+      to: to,
+      ts: Math.floor(Date.now() / 1000),
+      nonce: this.generateNonce(),
+      payload: {
+        file_id: fileId,
+        index: i,
+        ciphertext: base64Data,
+        chunk_sha256: chunkSha256
+      },
+      sig: "dev-mock"
+    };
+    return fileChunk;
+  }
+
+  // Ask the server which chunks it holds (FILE_STATUS bitmap, bit i%8 of byte i/8)
+  private queryMissingChunks(fileId: string, to: string, totalChunks: number): Promise<number[]> {
+    return new Promise(resolve => {
+      const all = Array.from({ length: totalChunks }, (_, i) => i);
+      const timer = setTimeout(() => {
+        this.fileStatusListeners.delete(fileId);
+        resolve(all);
+      }, 5000);
+      this.fileStatusListeners.set(fileId, status => {
+        clearTimeout(timer);
+        this.fileStatusListeners.delete(fileId);
+        if (!status.payload.known) {
+          resolve(all);
+          return;
+        }
+        const bitmap = atob(status.payload.received || '');
+        resolve(all.filter(i => {
+          const byte = i >> 3 < bitmap.length ? bitmap.charCodeAt(i >> 3) : 0;
+          return (byte & (1 << (i & 7))) === 0;
+        }));
+      });
+      this.send({
+        type: "FILE_STATUS",
+        from: this.currentUser,
+        to: "server",
+        ts: Math.floor(Date.now() / 1000),
+        payload: { file_id: fileId },
+        sig: "dev-mock"
+      });
+    });
+  }
+
+  private waitForAck(nonce: string, timeoutMs: number): Promise<any> {
+    return new Promise(resolve => {
+      const timer = setTimeout(() => {
+        this.pendingAcks.delete(nonce);
+        resolve(null);
+      }, timeoutMs);
+      this.pendingAcks.set(nonce, ack => {
+        clearTimeout(timer);
+        this.pendingAcks.delete(nonce);
+        resolve(ack);
+      });
+    });
+  }
+
   private generateFileId(): string {
     return Date.now().toString(36) + Math.random().toString(36).substring(2);
   }
 
   private async calculateSHA256(file: File): Promise<string> {
-    const arrayBuffer = await file.arrayBuffer();
+    return this.sha256Hex(await file.arrayBuffer());
+  }
+
+  private async sha256Hex(arrayBuffer: ArrayBuffer): Promise<string> {
     const hashBuffer = await crypto.subtle.digest('SHA-256', arrayBuffer);
     const hashArray = Array.from(new Uint8Array(hashBuffer));
     return hashArray.map(b => b.toString(16).padStart(2, '0')).join('');
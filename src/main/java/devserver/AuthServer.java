@@ -1,29 +1,36 @@
 package devserver;
 
-import com.sun.net.httpserver.HttpServer;
-import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpExchange;
 import org.json.JSONObject;
 
 import java.io.*;
-import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
+import java.nio.file.Paths;
 import java.security.SecureRandom;
-import java.security.spec.KeySpec;
-import java.util.Base64;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.PBEKeySpec;
 
 public class AuthServer {
     private static final int PORT = 8082;
     private static final String ALLOWED_ORIGIN = "http://localhost:5173";
-    private static final Map<String, UserCredential> users = new ConcurrentHashMap<>();
-    private static final Map<String, LoginAttempts> loginAttempts = new ConcurrentHashMap<>();
+    private static final String STORE_PATH = System.getProperty("devserver.auth.store", "./data/credentials.db");
+    // Registrations are fsynced together every FSYNC_MS
+    private static final long FSYNC_MS = Long.getLong("devserver.auth.fsyncMs", 10);
+    private static CredentialStore users;
     private static final int MAX_LOGIN_ATTEMPTS = 5;
+    // Per client IP, several users may share one address
+    private static final int MAX_IP_FAILURES = 30;
     private static final long LOCKOUT_DURATION_MS = 15 * 60 * 1000;
+    private static final LoginThrottle THROTTLE = new LoginThrottle(MAX_LOGIN_ATTEMPTS, MAX_IP_FAILURES, LOCKOUT_DURATION_MS);
+    // Login/register handlers mostly wait for the hasher, the PBKDF2 work itself is bounded there
+    private static final int AUTH_THREADS = 32;
+    private static final int AUTH_QUEUE = 256;
+    private static final int VERIFY_THREADS = 8;
+    private static final int VERIFY_QUEUE = 128;
+    // PBKDF2 is CPU-bound, more threads than cores only adds latency
+    private static final int HASH_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final int HASH_QUEUE = 16 * HASH_THREADS;
+    private static final long HASH_MAX_WAIT_MS = 2000;
+    private static final PasswordHasher HASHER = new PasswordHasher(HASH_THREADS, HASH_QUEUE, HASH_MAX_WAIT_MS);
 
     static class UserCredential {
         String hashedPassword;
@@ -34,36 +41,14 @@ public class AuthServer {
         }
     }
 
-    static class LoginAttempts {
-        int count = 0;
-        long lockoutUntil = 0;
-        boolean isLockedOut() {
-            if (lockoutUntil > System.currentTimeMillis()) {
-                return true;
-            } else if (lockoutUntil > 0) {
-                count = 0;
-                lockoutUntil = 0;
-            }
-            return false;
-        }
-        void recordFailure() {
-            count++;
-            if (count >= MAX_LOGIN_ATTEMPTS) {
-                lockoutUntil = System.currentTimeMillis() + LOCKOUT_DURATION_MS;
-            }
-        }
-        void recordSuccess() {
-            count = 0;
-            lockoutUntil = 0;
-        }
-    }
-
-    static {
+    // Hashed only on the first start, later starts find them in the store
+    private static void addDemoUsers() {
         try {
-            users.put("alice", createUserCredential("demo123"));
-            users.put("bob", createUserCredential("demo123"));
-            users.put("charlie", createUserCredential("demo123"));
-            users.put("sarah.johnson@example.com", createUserCredential("demo123"));
+            for (String username : new String[] {"alice", "bob", "charlie", "sarah.johnson@example.com"}) {
+                if (!users.contains(username)) {
+                    users.putIfAbsent(username, createUserCredential("demo123"));
+                }
+            }
         } catch (Exception e) {
             System.err.println("[AUTH] Failed to initialize demo users: " + e.getMessage());
         }
@@ -71,16 +56,22 @@ public class AuthServer {
 
     private static UserCredential createUserCredential(String password) throws Exception {
         byte[] salt = generateSalt();
-        String hashed = hashPasswordWithSalt(password, salt);
+        String hashed = PasswordHasher.pbkdf2(password, salt);
         return new UserCredential(hashed, salt);
     }
 
     public static void start() {
         try {
-            HttpServer server = HttpServer.create(new InetSocketAddress(PORT), 0);
+            long started = System.currentTimeMillis();
+            users = CredentialStore.open(Paths.get(STORE_PATH), FSYNC_MS);
+            addDemoUsers();
+            System.out.println("[AUTH] Loaded " + users.size() + " accounts from " + STORE_PATH + " in "
+                + (System.currentTimeMillis() - started) + " ms");
+
+            HttpHost server = new HttpHost("AUTH", PORT);
 
             // Register endpoint
-            server.createContext("/api/auth/register", exchange -> {
+            server.context("/api/auth/register", "auth", AUTH_THREADS, AUTH_QUEUE, exchange -> {
                 addCorsHeaders(exchange);
                 if ("OPTIONS".equals(exchange.getRequestMethod())) {
                     exchange.sendResponseHeaders(204, -1);
@@ -113,14 +104,29 @@ public class AuthServer {
                         return;
                     }
 
-                    if (users.containsKey(username)) {
+                    // An address throttled for failed logins gets no PBKDF2 time here either
+                    long retryAfterMs = THROTTLE.retryAfterMs(clientIp(exchange), null);
+                    if (retryAfterMs > 0) {
+                        sendThrottled(exchange, retryAfterMs);
+                        return;
+                    }
+
+                    if (users.contains(username)) {
                         sendResponse(exchange, 400, "{\"error\": \"Registration failed\"}");
                         return;
                     }
 
                     byte[] salt = generateSalt();
                     String hashedPassword = hashPasswordWithSalt(password, salt);
-                    users.put(username, new UserCredential(hashedPassword, salt));
+                    if (hashedPassword == null) {
+                        sendBusy(exchange);
+                        return;
+                    }
+                    // Taken by a concurrent registration while we were hashing
+                    if (!users.putIfAbsent(username, new UserCredential(hashedPassword, salt))) {
+                        sendResponse(exchange, 400, "{\"error\": \"Registration failed\"}");
+                        return;
+                    }
 
                     // Generate JWT token
                     String token = JwtService.generateToken(username);
@@ -137,7 +143,7 @@ public class AuthServer {
             });
 
             // Login endpoint
-            server.createContext("/api/auth/login", exchange -> {
+            server.context("/api/auth/login", "auth", AUTH_THREADS, AUTH_QUEUE, exchange -> {
                 addCorsHeaders(exchange);
                 if ("OPTIONS".equals(exchange.getRequestMethod())) {
                     exchange.sendResponseHeaders(204, -1);
@@ -155,31 +161,34 @@ public class AuthServer {
                     String username = json.getString("username");
                     String password = json.getString("password");
 
-                    LoginAttempts attempts = loginAttempts.computeIfAbsent(username, k -> new LoginAttempts());
-                    if (attempts.isLockedOut()) {
-                        long remainingMs = attempts.lockoutUntil - System.currentTimeMillis();
-                        long remainingMinutes = remainingMs / 60000;
-                        sendResponse(exchange, 429, "{\"error\": \"Too many failed attempts. Try again in " +
-                                    remainingMinutes + " minutes\"}");
+                    // Checked before the hasher, so throttled logins cost no PBKDF2
+                    String ip = clientIp(exchange);
+                    long retryAfterMs = THROTTLE.retryAfterMs(ip, username);
+                    if (retryAfterMs > 0) {
+                        sendThrottled(exchange, retryAfterMs);
                         return;
                     }
 
-                    if (!users.containsKey(username)) {
-                        attempts.recordFailure();
+                    UserCredential credential = users.get(username);
+                    if (credential == null) {
+                        THROTTLE.recordFailure(ip, username);
                         sendResponse(exchange, 401, "{\"error\": \"Invalid credentials\"}");
                         return;
                     }
 
-                    UserCredential credential = users.get(username);
                     String hashedPassword = hashPasswordWithSalt(password, credential.salt);
+                    if (hashedPassword == null) {
+                        sendBusy(exchange); // not a failed attempt
+                        return;
+                    }
 
                     if (!MessageDigest.isEqual(hashedPassword.getBytes(), credential.hashedPassword.getBytes())) {
-                        attempts.recordFailure();
+                        THROTTLE.recordFailure(ip, username);
                         sendResponse(exchange, 401, "{\"error\": \"Invalid credentials\"}");
                         return;
                     }
 
-                    attempts.recordSuccess();
+                    THROTTLE.recordSuccess(username);
 
                     // Generate JWT token
                     String token = JwtService.generateToken(username);
@@ -196,7 +205,7 @@ public class AuthServer {
             });
 
             // Verify token endpoint
-            server.createContext("/api/auth/verify", exchange -> {
+            server.context("/api/auth/verify", "verify", VERIFY_THREADS, VERIFY_QUEUE, exchange -> {
                 addCorsHeaders(exchange);
                 if ("OPTIONS".equals(exchange.getRequestMethod())) {
                     exchange.sendResponseHeaders(204, -1);
@@ -230,7 +239,8 @@ public class AuthServer {
                 }
             });
 
-            server.setExecutor(null);
+            server.metrics("pbkdf2", HASHER::toJson);
+            server.metrics("throttle", THROTTLE::toJson);
             server.start();
             System.out.println("[AUTH] Authentication server started on port " + PORT);
         } catch (IOException e) {
@@ -265,6 +275,25 @@ public class AuthServer {
         os.close();
     }
 
+    // The hasher is saturated: shed the request instead of queueing it
+    private static void sendBusy(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("Retry-After", String.valueOf(HASHER.retryAfterSeconds()));
+        exchange.getResponseHeaders().add("Access-Control-Expose-Headers", "Retry-After");
+        sendResponse(exchange, 503, "{\"error\": \"Server busy, please try again shortly\"}");
+    }
+
+    private static void sendThrottled(HttpExchange exchange, long retryAfterMs) throws IOException {
+        long seconds = (retryAfterMs + 999) / 1000;
+        exchange.getResponseHeaders().set("Retry-After", String.valueOf(seconds));
+        exchange.getResponseHeaders().add("Access-Control-Expose-Headers", "Retry-After");
+        sendResponse(exchange, 429, "{\"error\": \"Too many failed attempts. Try again in " +
+                    ((seconds + 59) / 60) + " minutes\"}");
+    }
+
+    private static String clientIp(HttpExchange exchange) {
+        return exchange.getRemoteAddress().getAddress().getHostAddress();
+    }
+
     private static byte[] generateSalt() {
         SecureRandom random = new SecureRandom();
         byte[] salt = new byte[16];
@@ -272,10 +301,10 @@ public class AuthServer {
         return salt;
     }
 
+    /**
+     * @return null when the hasher is saturated
+     */
     private static String hashPasswordWithSalt(String password, byte[] salt) throws Exception {
-        KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, 65536, 256);
-        SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
-        byte[] hash = factory.generateSecret(spec).getEncoded();
-        return Base64.getEncoder().encodeToString(hash);
+        return HASHER.hash(password, salt);
     }
 }
@@ -0,0 +1,66 @@
+package devserver;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Heap buffers for uploads held in memory, recycled in power-of-two size classes so
+ * a stream of small attachments does not allocate a fresh buffer each time.
+ *
+ * The bytes handed out at once are capped; when the cap is reached acquire returns
+ * null and the caller falls back to a temp file.
+ */
+class BufferPool {
+    private static final int MIN_CLASS_SHIFT = 12; // 4KB
+    private static final int MAX_IDLE_PER_CLASS = 8;
+
+    private final long maxOutstandingBytes;
+    private final List<ArrayDeque<ByteBuffer>> idle;
+    private long outstandingBytes;
+
+    BufferPool(int maxBufferSize, long maxOutstandingBytes) {
+        this.maxOutstandingBytes = maxOutstandingBytes;
+        this.idle = new ArrayList<>();
+        for (int i = 0; i <= classOf(maxBufferSize); i++) {
+            idle.add(new ArrayDeque<>());
+        }
+    }
+
+    /**
+     * @return a cleared buffer with limit size, or null if the pool is exhausted or
+     *         size is above the largest class
+     */
+    synchronized ByteBuffer acquire(int size) {
+        int sizeClass = classOf(size);
+        if (sizeClass >= idle.size()) {
+            return null;
+        }
+        int capacity = 1 << (sizeClass + MIN_CLASS_SHIFT);
+        if (outstandingBytes + capacity > maxOutstandingBytes) {
+            return null;
+        }
+        outstandingBytes += capacity;
+        ByteBuffer buffer = idle.get(sizeClass).poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(capacity);
+        }
+        buffer.clear().limit(size);
+        return buffer;
+    }
+
+    synchronized void release(ByteBuffer buffer) {
+        int sizeClass = classOf(buffer.capacity());
+        outstandingBytes -= buffer.capacity();
+        if (sizeClass < idle.size() && idle.get(sizeClass).size() < MAX_IDLE_PER_CLASS) {
+            idle.get(sizeClass).push(buffer);
+        }
+    }
+
+    // Smallest class whose buffers hold size bytes
+    private static int classOf(int size) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+        return Math.max(shift, MIN_CLASS_SHIFT) - MIN_CLASS_SHIFT;
+    }
+}
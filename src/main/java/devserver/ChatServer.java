@@ -2,13 +2,25 @@ package devserver;
 
 import org.java_websocket.server.WebSocketServer;
 import org.java_websocket.WebSocket;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.exceptions.InvalidDataException;
+import org.java_websocket.framing.CloseFrame;
 import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.handshake.ServerHandshakeBuilder;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.BitSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.json.JSONObject;
 import org.json.JSONArray;
@@ -21,6 +33,16 @@ import socp.dht.KademliaNode;
 import socp.MessageParser;
 
 public class ChatServer extends WebSocketServer {
+    // Browsers cannot set headers on a WebSocket, so they offer the JWT as this subprotocol
+    private static final String BEARER_PROTOCOL = "bearer.";
+    // Without it, connections that bring no token are let in unauthenticated
+    private static final boolean REQUIRE_AUTH = Boolean.getBoolean("devserver.ws.requireAuth");
+    // Frames larger than this (FILE_CHUNK) are parsed off the WebSocket decoder thread
+    private static final int INLINE_FRAME_CHARS = 16 * 1024;
+    // Connections are spread over the decoder threads, one busy with a chunk frame holds up the others on it
+    private static final int DECODERS = Integer.getInteger("devserver.ws.decoders",
+        Math.max(8, 2 * Runtime.getRuntime().availableProcessors()));
+
     private final Schema schema;
     private final Map<WebSocket, Rate> rates = new ConcurrentHashMap<>();
     private final Set<String> usedNonces = ConcurrentHashMap.newKeySet();
@@ -28,8 +50,21 @@ public class ChatServer extends WebSocketServer {
     private final Map<String, UserInfo> connectedUsers = new ConcurrentHashMap<>();
     private final DhtService dhtService;
     private final FileTransferManager fileTransferManager;
+    private final FileRelay fileRelay = new FileRelay();
+    private final Map<WebSocket, Inbox> inboxes = new ConcurrentHashMap<>();
+    private final ExecutorService inbound = Executors.newFixedThreadPool(
+        Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            @Override public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ws-inbound-" + count.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        });
 
     static class Rate { long windowStartMs = System.currentTimeMillis(); int count = 0; }
+    // Frames of one connection waiting for the inbound pool, handled in arrival order
+    static class Inbox { final ArrayDeque<String> frames = new ArrayDeque<>(); boolean draining; }
     static class UserInfo {
         String userId;
         long lastSeen;
@@ -50,7 +85,11 @@ public class ChatServer extends WebSocketServer {
     }
 
     public ChatServer(int port) {
-        super(new InetSocketAddress(port));
+        this(port, new FileTransferManager());
+    }
+
+    public ChatServer(int port, FileTransferManager fileTransferManager) {
+        super(new InetSocketAddress(port), DECODERS);
         // 读取 resources/socp.json
         JSONObject raw = new JSONObject(new JSONTokener(
             ChatServer.class.getResourceAsStream("/socp.json")));
@@ -75,19 +114,61 @@ public class ChatServer extends WebSocketServer {
             throw new RuntimeException("Failed to initialize DHT service", e);
         }
 
-        // 初始化文件传输管理器
-        this.fileTransferManager = new FileTransferManager();
+        // 文件传输管理器，与 FileServer 的 HTTP 上传共用
+        this.fileTransferManager = fileTransferManager;
     }
 
     @Override public void onStart() { System.out.println("[WS] started on " + getAddress()); }
 
+    /**
+     * Authenticate the upgrade with "Authorization: Bearer <token>" or a "bearer.<token>"
+     * subprotocol. A valid token binds the connection to its username (the attachment);
+     * an invalid one fails the handshake. Verification is cached by JwtService, so a
+     * reconnect storm does not redo the signature checks.
+     */
+    @Override
+    public ServerHandshakeBuilder onWebsocketHandshakeReceivedAsServer(WebSocket conn, Draft draft,
+            ClientHandshake request) throws InvalidDataException {
+        ServerHandshakeBuilder response = super.onWebsocketHandshakeReceivedAsServer(conn, draft, request);
+        String token = null;
+        String protocol = null;
+        String authorization = request.getFieldValue("Authorization");
+        if (authorization.startsWith("Bearer ")) {
+            token = authorization.substring("Bearer ".length()).trim();
+        } else {
+            for (String offered : request.getFieldValue("Sec-WebSocket-Protocol").split(",")) {
+                if (offered.trim().startsWith(BEARER_PROTOCOL)) {
+                    protocol = offered.trim();
+                    token = protocol.substring(BEARER_PROTOCOL.length());
+                    break;
+                }
+            }
+        }
+        if (token == null) {
+            if (REQUIRE_AUTH) throw new InvalidDataException(CloseFrame.POLICY_VALIDATION, "token required");
+            return response;
+        }
+        String username = JwtService.validateToken(token);
+        if (username == null) {
+            throw new InvalidDataException(CloseFrame.POLICY_VALIDATION, "invalid token");
+        }
+        conn.setAttachment(username);
+        // The browser drops the connection unless the offered subprotocol is echoed
+        if (protocol != null) {
+            response.put("Sec-WebSocket-Protocol", protocol);
+        }
+        return response;
+    }
+
     @Override public void onOpen(WebSocket conn, ClientHandshake handshake) {
-        System.out.println("[WS] open " + conn.getRemoteSocketAddress());
+        String user = conn.getAttachment();
+        System.out.println("[WS] open " + conn.getRemoteSocketAddress() + (user != null ? " as " + user : ""));
     }
 
     @Override public void onClose(WebSocket conn, int code, String reason, boolean remote) {
         System.out.println("[WS] close " + conn.getRemoteSocketAddress() + " reason=" + reason);
         rates.remove(conn);
+        inboxes.remove(conn);
 
         // 移除客户端注册并从DHT中移除
         String disconnectedUser = null;
@@ -102,6 +183,7 @@ public class ChatServer extends WebSocketServer {
         if (disconnectedUser != null) {
             connectedUsers.remove(disconnectedUser);
             System.out.println("[WS] user disconnected: " + disconnectedUser);
+            onRelayPartyGone(disconnectedUser);
         }
 
         for (Map.Entry<String, WebSocket> entry : clients.entrySet()) {
@@ -121,12 +203,62 @@ public class ChatServer extends WebSocketServer {
         r.count++; return true;
     }
 
+    /**
+     * Runs on a decoder thread shared by many connections. Small frames are handled
+     * right here; a large one, and everything the connection sends after it until the
+     * backlog is drained, goes through the connection's inbox on the inbound pool, so
+     * parsing a chunk does not hold up chat on other connections.
+     */
     @Override public void onMessage(WebSocket conn, String msg) {
-        try {
-            if (!allow(conn)) {
-                conn.send(errorJson("rate_limited"));
-                return;
+        if (!allow(conn)) {
+            conn.send(errorJson("rate_limited"));
+            return;
+        }
+        Inbox inbox = inboxes.get(conn);
+        if (inbox == null && msg.length() <= INLINE_FRAME_CHARS) {
+            handleMessage(conn, msg);
+            return;
+        }
+        if (inbox == null) {
+            inbox = inboxes.computeIfAbsent(conn, c -> new Inbox());
+        }
+        synchronized (inbox) {
+            if (!inbox.draining && msg.length() <= INLINE_FRAME_CHARS) {
+                inbox = null; // nothing queued, no need to keep the order
+            } else {
+                inbox.frames.add(msg);
+                if (inbox.draining) return;
+                inbox.draining = true;
             }
+        }
+        if (inbox == null) {
+            handleMessage(conn, msg);
+        } else {
+            Inbox draining = inbox;
+            inbound.execute(() -> drain(conn, draining));
+        }
+    }
+
+    private void drain(WebSocket conn, Inbox inbox) {
+        while (true) {
+            String msg;
+            synchronized (inbox) {
+                msg = inbox.frames.poll();
+                if (msg == null) {
+                    inbox.draining = false;
+                    return;
+                }
+            }
+            try {
+                handleMessage(conn, msg);
+            } catch (Exception e) {
+                System.err.println("[WS] error " + e.getMessage()); // e.g. closed while queued
+            }
+        }
+    }
+
+    private void handleMessage(WebSocket conn, String msg) {
+        try {
             JSONObject json = new JSONObject(msg);
             // schema.validate(json); // Schema 校验 - 暂时禁用以测试其他功能
 
@@ -147,9 +279,20 @@ public class ChatServer extends WebSocketServer {
             // 处理客户端注册（从 USER_HELLO 获取 client ID）
             String type = json.getString("type");
             String from = json.optString("from");
+            // 握手时已验证身份的连接只能以该用户名发消息
+            String verifiedUser = conn.getAttachment();
+            // 匿名连接不能冒用已验证连接占用的用户名
+            if (verifiedUser != null ? !verifiedUser.equals(from) : heldByVerified(from, conn)) {
+                conn.send(errorJson("identity_mismatch"));
+                return;
+            }
             if ("USER_HELLO".equals(type) && json.has("payload")) {
                 JSONObject payload = json.getJSONObject("payload");
                 String clientId = payload.optString("client", from);
+                if (verifiedUser != null ? !verifiedUser.equals(clientId) : heldByVerified(clientId, conn)) {
+                    conn.send(errorJson("identity_mismatch"));
+                    return;
+                }
                 if (clientId != null && !clientId.isEmpty()) {
                     clients.put(clientId, conn);
                     // 注册到DHT和在线用户列表
@@ -165,94 +308,138 @@ public class ChatServer extends WebSocketServer {
                 return;
             }
 
-            // 处理文件传输消息
-            if ("FILE_START".equals(type) || "FILE_CHUNK".equals(type) || "FILE_END".equals(type)) {
-                String to = json.optString("to");
-                String result = handleFileTransferMessage(json, type);
-                if (result != null) {
-                    conn.send(errorJson("file_transfer_error: " + result));
-                    return;
-                } else {
-                    // 发送ACK确认
-                    JSONObject ack = new JSONObject();
-                    ack.put("type", "ACK");
-                    ack.put("from", "server");
-                    ack.put("to", from);
-                    ack.put("ts", System.currentTimeMillis() / 1000);
-                    ack.put("nonce", "ack-" + System.currentTimeMillis());
-                    JSONObject ackPayload = new JSONObject();
-                    ackPayload.put("msg_ref", json.optString("nonce"));
-                    ackPayload.put("status", "ok");
-                    ack.put("payload", ackPayload);
-                    ack.put("sig", "server-sig");
-                    conn.send(ack.toString());
-
-                    // 如果是点对点文件传输，也转发给目标用户
-                    if (to != null && !to.equals("server") && !to.equals("*")) {
-                        WebSocket targetConn = clients.get(to);
-                        if (targetConn != null && targetConn.isOpen()) {
-                            targetConn.send(json.toString());
-                        }
-                    }
+            // 断点续传：返回服务器已收到的分块位图
+            // 排在该传输已提交的分块之后，位图才包含它们
+            if ("FILE_STATUS".equals(type)) {
+                String fileId = json.getJSONObject("payload").optString("file_id");
+                fileTransferManager.submit(fileId, () -> {
+                    conn.send(createFileStatusResponse(json).toString());
+                    return null;
+                });
+                return;
+            }
 
-                    // 对于FILE_END消息，确保payload包含文件元数据，然后继续广播
-                    if ("FILE_END".equals(type)) {
-                        JSONObject payload = json.getJSONObject("payload");
-                        // 如果前端没有发送name和size，从服务器元数据中获取
-                        if (!payload.has("name") || !payload.has("size")) {
-                            String fileId = payload.getString("file_id");
-                            FileTransferManager.FileMetadata metadata = fileTransferManager.getTransferMetadata(fileId);
-                            if (metadata != null) {
-                                payload.put("name", metadata.fileName);
-                                payload.put("size", metadata.totalSize);
-                            }
-                        }
-                        // 继续，让FILE_END消息被广播
-                    } else {
-                        return;
+            // 中继模式：接收方对中继分块的ACK即发送方的credit
+            if ("ACK".equals(type) && json.has("payload")) {
+                FileRelay.Session session = fileRelay.onAck(from, json.getJSONObject("payload").optString("msg_ref"));
+                if (session != null) {
+                    WebSocket senderConn = clients.get(session.sender);
+                    if (senderConn != null && senderConn.isOpen()) {
+                        senderConn.send(json.toString());
                     }
+                    return;
                 }
             }
 
-            // 更新用户活动状态
-            if (from != null && connectedUsers.containsKey(from)) {
-                String activity = "HEARTBEAT".equals(type) ? "Online" :
-                                "MSG_DIRECT".equals(type) ? "Typing..." :
-                                type.startsWith("FILE_") ? "Transferring file..." : "Active";
-                connectedUsers.get(from).updateActivity(activity);
+            // 中继模式的文件消息不落盘，直接转给接收方
+            if (type.startsWith("FILE_") && handleRelayMessage(conn, json, type, from)) {
+                return;
+            }
+
+            // 处理文件传输消息
+            // 文件I/O交给磁盘写入线程，写完后再发ACK和转发，磁盘慢也不会卡住消息路由
+            if ("FILE_START".equals(type) || "FILE_CHUNK".equals(type) || "FILE_END".equals(type)) {
+                JSONObject payload = json.optJSONObject("payload");
+                String fileId = payload == null ? null : payload.optString("file_id", null);
+                // 分块先经过带宽调度，ACK要等写完才发，发送方的ACK窗口就会慢下来
+                CompletableFuture<String> admitted = "FILE_START".equals(type) || fileId == null
+                    ? CompletableFuture.completedFuture(null)
+                    : fileTransferManager.admit(from, fileId,
+                        "FILE_CHUNK".equals(type) ? payload.optString("ciphertext").length() / 4 * 3 : 0);
+                admitted.thenCompose(error -> error != null
+                        ? CompletableFuture.completedFuture(error)
+                        : fileTransferManager.submit(fileId, () -> handleFileTransferMessage(json, type)))
+                    .thenAccept(result -> onFileTransferDone(conn, json, type, from, result));
+                return;
             }
 
-            // 路由逻辑：如果 to != "server"，转发给目标客户端
+            routeMessage(conn, json, type, from);
+        } catch (Exception e) {
+            conn.send(errorJson("invalid_message: "+ e.getMessage()));
+        }
+    }
+
+    /**
+     * Completion of a FILE_START/CHUNK/END on the disk writer; runs on the writer thread
+     */
+    private void onFileTransferDone(WebSocket conn, JSONObject json, String type, String from, String result) {
+        try {
+            if (result != null) {
+                conn.send(errorJson("file_transfer_error: " + result));
+                return;
+            }
+            // 发送ACK确认
+            // "exists": the server already has this content, the sender only sends the proof chunks
+            String fileId = json.getJSONObject("payload").optString("file_id");
+            boolean exists = "FILE_START".equals(type) && fileTransferManager.isDeduplicated(fileId);
+            JSONObject ack = ackJson(from, json.optString("nonce"), exists ? "exists" : "ok");
+            if (exists) {
+                ack.getJSONObject("payload").put("proof", new JSONArray(fileTransferManager.getProofChunks(fileId)));
+            }
+            conn.send(ack.toString());
+
+            // 如果是点对点文件传输，也转发给目标用户
             String to = json.optString("to");
             if (to != null && !to.equals("server") && !to.equals("*")) {
-                // 私聊消息：发给目标用户和发送者自己
                 WebSocket targetConn = clients.get(to);
                 if (targetConn != null && targetConn.isOpen()) {
                     targetConn.send(json.toString());
-                    conn.send(json.toString()); // 也发给发送者，这样发送者能看到自己的消息
-                    System.out.println("[WS] routed message from " + from + " to " + to);
-                } else {
-                    conn.send(errorJson("unknown_to"));
-                    System.out.println("[WS] unknown target: " + to + " (from " + from + ")");
-                }
-            } else if ("*".equals(to)) {
-                // 广播消息到所有客户端
-                System.out.println("[WS] broadcast from " + from + " to " + clients.size() + " clients");
-                for (Map.Entry<String, WebSocket> entry : clients.entrySet()) {
-                    WebSocket clientConn = entry.getValue();
-                    if (clientConn != null && clientConn.isOpen()) {
-                        clientConn.send(json.toString());
-                    }
                 }
-            } else {
-                // 发给服务器的消息，简单 echo
-                conn.send(json.toString());
+            }
+
+            // FILE_END继续按普通消息路由（广播）
+            if ("FILE_END".equals(type)) {
+                routeMessage(conn, json, type, from);
             }
         } catch (Exception e) {
-            conn.send(errorJson("invalid_message: "+ e.getMessage()));
+            System.err.println("[FileTransfer] Failed to complete " + type + " from " + from + ": " + e.getMessage());
         }
     }
 
+    private void routeMessage(WebSocket conn, JSONObject json, String type, String from) {
+        // 更新用户活动状态
+        if (from != null && connectedUsers.containsKey(from)) {
+            String activity = "HEARTBEAT".equals(type) ? "Online" :
+                            "MSG_DIRECT".equals(type) ? "Typing..." :
+                            type.startsWith("FILE_") ? "Transferring file..." : "Active";
+            connectedUsers.get(from).updateActivity(activity);
+        }
+
+        // 路由逻辑：如果 to != "server"，转发给目标客户端
+        String to = json.optString("to");
+        if (to != null && !to.equals("server") && !to.equals("*")) {
+            // 私聊消息：发给目标用户和发送者自己
+            WebSocket targetConn = clients.get(to);
+            if (targetConn != null && targetConn.isOpen()) {
+                targetConn.send(json.toString());
+                conn.send(json.toString()); // 也发给发送者，这样发送者能看到自己的消息
+                System.out.println("[WS] routed message from " + from + " to " + to);
+            } else {
+                conn.send(errorJson("unknown_to"));
+                System.out.println("[WS] unknown target: " + to + " (from " + from + ")");
+            }
+        } else if ("*".equals(to)) {
+            // 广播消息到所有客户端
+            System.out.println("[WS] broadcast from " + from + " to " + clients.size() + " clients");
+            for (Map.Entry<String, WebSocket> entry : clients.entrySet()) {
+                WebSocket clientConn = entry.getValue();
+                if (clientConn != null && clientConn.isOpen()) {
+                    clientConn.send(json.toString());
+                }
+            }
+        } else {
+            // 发给服务器的消息，简单 echo
+            conn.send(json.toString());
+        }
+    }
+
+    // Whether another open connection that authenticated at the handshake is registered as this user
+    private boolean heldByVerified(String user, WebSocket conn) {
+        if (user == null || user.isEmpty()) return false;
+        WebSocket owner = clients.get(user);
+        return owner != null && owner != conn && owner.isOpen() && owner.getAttachment() != null;
+    }
+
     private String errorJson(String detail){
         // 构造最小合法协议（按你们模型：type/from/to/ts/nonce/payload/sig）
         JSONObject o = new JSONObject();
@@ -297,6 +484,169 @@ public class ChatServer extends WebSocketServer {
         return response;
     }
 
+    /**
+     * @return true if the message was fully handled as part of a relay session
+     */
+    private boolean handleRelayMessage(WebSocket conn, JSONObject json, String type, String from) {
+        JSONObject payload = json.optJSONObject("payload");
+        if (payload == null) return false;
+        String fileId = payload.optString("file_id", null);
+        String to = json.optString("to");
+
+        if ("FILE_START".equals(type)) {
+            // A live relay keeps its fileId, whoever sends the new FILE_START
+            if (fileRelay.get(fileId) != null) {
+                conn.send(errorJson("file_transfer_error: File transfer already in progress for fileId: " + fileId));
+                return true;
+            }
+            if (!"relay".equals(payload.optString("mode"))) return false;
+            WebSocket targetConn = clients.get(to);
+            if (targetConn == null || !targetConn.isOpen() || fileId == null) {
+                // Nobody to relay to, store it like a normal DM
+                payload.put("mode", "dm");
+                return false;
+            }
+            if (fileRelay.open(fileId, from, to, payload) == null) {
+                conn.send(errorJson("file_transfer_error: File transfer already in progress for fileId: " + fileId));
+                return true;
+            }
+            targetConn.send(json.toString());
+            conn.send(ackJson(from, json.optString("nonce"), "relay").toString());
+            System.out.println("[FileRelay] Relaying " + fileId + " from " + from + " to " + to);
+            return true;
+        }
+
+        FileRelay.Session session = fileRelay.get(fileId);
+        if (session == null || !session.sender.equals(from)) return false;
+
+        if ("FILE_CHUNK".equals(type)) {
+            if (session.fallback) return false; // stored like any other chunk from now on
+            String error = fileRelay.admitChunk(session, json);
+            if (error != null) {
+                conn.send(errorJson("file_transfer_error: " + error));
+                return true;
+            }
+            WebSocket targetConn = clients.get(session.recipient);
+            if (targetConn != null && targetConn.isOpen()) {
+                targetConn.send(json.toString());
+            }
+            // No ACK here, the sender's credit comes back with the recipient's ACK
+            return true;
+        }
+
+        if ("FILE_END".equals(type)) {
+            fileRelay.close(fileId);
+            if (session.fallback) return false; // finalize the stored file as usual
+            WebSocket targetConn = clients.get(session.recipient);
+            if (targetConn != null && targetConn.isOpen()) {
+                targetConn.send(json.toString());
+            }
+            conn.send(json.toString()); // 发送者据此显示上传完成
+            System.out.println("[FileRelay] Completed " + fileId);
+            return true;
+        }
+        return false;
+    }
+
+    private void onRelayPartyGone(String userId) {
+        for (FileRelay.Session session : fileRelay.sessionsOf(userId)) {
+            if (session.sender.equals(userId)) {
+                fileRelay.close(session.fileId);
+                continue;
+            }
+            if (!session.fallback) {
+                fallBackToStore(session);
+            }
+        }
+    }
+
+    /**
+     * The recipient went offline: open a stored transfer, keep the chunks it may not
+     * have seen, and tell the sender which chunks the server now holds
+     */
+    private void fallBackToStore(FileRelay.Session session) {
+        List<JSONObject> pending = fileRelay.startFallback(session);
+        JSONObject start = session.startPayload;
+        fileTransferManager.submit(session.fileId, () -> {
+            String error = fileTransferManager.handleFileStart(session.fileId, start.optString("name"),
+                start.optLong("size"), start.optString("sha256", ""), "dm",
+                start.optInt("chunk_size", 256 * 1024), start.optString("merkle_root", ""), session.sender);
+            if (error != null) {
+                return error;
+            }
+            for (JSONObject chunk : pending) {
+                JSONObject chunkPayload = chunk.getJSONObject("payload");
+                fileTransferManager.handleFileChunk(session.fileId, chunkPayload.getInt("index"),
+                    chunkPayload.getString("ciphertext"), chunkPayload.optString("chunk_sha256", ""));
+            }
+            return null;
+        }).thenAccept(error -> {
+            WebSocket senderConn = clients.get(session.sender);
+            if (error != null) {
+                fileRelay.close(session.fileId);
+                if (senderConn != null && senderConn.isOpen()) {
+                    senderConn.send(errorJson("file_transfer_error: " + error));
+                }
+                return;
+            }
+            System.out.println("[FileRelay] " + session.recipient + " went offline, storing " + session.fileId);
+
+            if (senderConn != null && senderConn.isOpen()) {
+                JSONObject request = new JSONObject();
+                request.put("from", session.sender);
+                request.put("payload", new JSONObject().put("file_id", session.fileId));
+                senderConn.send(createFileStatusResponse(request).toString());
+            }
+        });
+    }
+
+    private JSONObject ackJson(String to, String msgRef, String status) {
+        JSONObject ack = new JSONObject();
+        ack.put("type", "ACK");
+        ack.put("from", "server");
+        ack.put("to", to);
+        ack.put("ts", System.currentTimeMillis() / 1000);
+        ack.put("nonce", "ack-" + System.currentTimeMillis());
+        JSONObject ackPayload = new JSONObject();
+        ackPayload.put("msg_ref", msgRef);
+        ackPayload.put("status", status);
+        ack.put("payload", ackPayload);
+        ack.put("sig", "server-sig");
+        return ack;
+    }
+
+    /**
+     * received is base64 of a little-endian bitmap: bit (i % 8) of byte (i / 8) is chunk i.
+     * known=false means the server has no such transfer and the client must start over.
+     */
+    private JSONObject createFileStatusResponse(JSONObject request) {
+        String fileId = request.getJSONObject("payload").optString("file_id");
+        JSONObject payload = new JSONObject();
+        payload.put("file_id", fileId);
+
+        BitSet received = fileTransferManager.getReceivedChunks(fileId);
+        FileTransferManager.FileMetadata metadata = fileTransferManager.getTransferMetadata(fileId);
+        if (received == null || metadata == null) {
+            payload.put("known", false);
+        } else {
+            payload.put("known", true);
+            payload.put("chunk_size", metadata.chunkSize);
+            payload.put("total_chunks", metadata.expectedChunks());
+            payload.put("received_count", received.cardinality());
+            payload.put("received", Base64.getEncoder().encodeToString(received.toByteArray()));
+        }
+
+        JSONObject response = new JSONObject();
+        response.put("type", "FILE_STATUS");
+        response.put("from", "server");
+        response.put("to", request.optString("from"));
+        response.put("ts", System.currentTimeMillis() / 1000);
+        response.put("nonce", java.util.UUID.randomUUID().toString().replace("-", ""));
+        response.put("payload", payload);
+        response.put("sig", "server-sig");
+        return response;
+    }
+
     // 处理文件传输消息
     private String handleFileTransferMessage(JSONObject json, String type) {
         try {
@@ -309,15 +659,19 @@ public class ChatServer extends WebSocketServer {
                     long size = payload.getLong("size");
                     String sha256 = payload.optString("sha256", "");
                     String mode = payload.getString("mode");
+                    int chunkSize = payload.optInt("chunk_size", 256 * 1024);
+                    String merkleRoot = payload.optString("merkle_root", "");
 
-                    return fileTransferManager.handleFileStart(fileId, fileName, size, sha256, mode);
+                    return fileTransferManager.handleFileStart(fileId, fileName, size, sha256, mode, chunkSize, merkleRoot,
+                        json.optString("from", null));
 
                 case "FILE_CHUNK":
                     fileId = payload.getString("file_id");
                     int index = payload.getInt("index");
                     String ciphertext = payload.getString("ciphertext");
+                    String chunkSha256 = payload.optString("chunk_sha256", "");
 
-                    return fileTransferManager.handleFileChunk(fileId, index, ciphertext);
+                    return fileTransferManager.handleFileChunk(fileId, index, ciphertext, chunkSha256);
 
                 case "FILE_END":
                     fileId = payload.getString("file_id");
@@ -328,6 +682,12 @@ public class ChatServer extends WebSocketServer {
                         return "File transfer not found";
                     }
 
+                    // 如果前端没有发送name和size，从服务器元数据中获取（完成后元数据就被移除了）
+                    if (!payload.has("name") || !payload.has("size")) {
+                        payload.put("name", metadata.fileName);
+                        payload.put("size", metadata.totalSize);
+                    }
+
                     // 使用实际接收到的chunk数量
                     int actualChunks = metadata.receivedChunks.size();
 
@@ -356,10 +716,11 @@ public class ChatServer extends WebSocketServer {
         // Start authentication server
         AuthServer.start();
 
-        // Start file server for downloads
-        FileServer.start();
+        // Start file server for downloads and binary uploads
+        FileTransferManager fileTransferManager = new FileTransferManager();
+        FileServer.start(fileTransferManager);
 
-        ChatServer s = new ChatServer(port);
+        ChatServer s = new ChatServer(port, fileTransferManager);
         s.start();
         System.out.println("[WS] listening on ws://127.0.0.1:" + port);
     }
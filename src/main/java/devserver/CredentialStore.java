@@ -0,0 +1,509 @@
+package devserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * AuthServer's accounts: an append-only file of (username, salt, PBKDF2 hash) records
+ * and an open-addressing index from username to record offset.
+ *
+ * The index holds only a hash and an offset per account (12 bytes, at most half full),
+ * a lookup reads the record back with one positional read. Startup streams the file
+ * once and never rehashes a password, so a million accounts load in about a second.
+ *
+ * Record: int bodyLength, body (short nameLength, name, byte saltLength, salt,
+ * byte hashLength, hash), int CRC32 of the body. A torn record at the end from a
+ * crash is dropped; if the load found dead records the file is compacted before use,
+ * and again while running once at least half of it is dead.
+ *
+ * Registrations wait until their record is fsynced, but fsyncs are batched: a flusher
+ * forces the file every fsyncMs for all records written meanwhile (0 forces each
+ * write, negative leaves it to the OS), without holding up writers. A record enters
+ * the index only once synced; if the sync fails its checksum is broken, so a restart
+ * drops it as well.
+ */
+class CredentialStore {
+    private static final byte[] MAGIC = "DVCRED1\n".getBytes(StandardCharsets.US_ASCII);
+    private static final int MIN_BODY = 2 + 1 + 1;
+    private static final int MAX_BODY = 1024;
+    private static final int INITIAL_CAPACITY = 1024;
+    // Compact while running once dead records are at least half the file and this large
+    private static final long COMPACT_MIN_DEAD = 64 * 1024;
+
+    private final Path path;
+    private final long fsyncMs;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile FileChannel channel; // replaced by compact()
+    private long end;
+    private long dead;
+
+    // Open addressing with linear probing; hashes[i] == 0 marks an empty slot
+    private int[] hashes = new int[INITIAL_CAPACITY];
+    private long[] offsets = new long[INITIAL_CAPACITY];
+    private int count;
+    // Records written but not yet synced, by username, so a second registration cannot race them
+    private final Map<String, Long> pending = new HashMap<>();
+
+    // Group commit: records are numbered as written, synced is the last one forced
+    private final Object syncMonitor = new Object();
+    private volatile long written;
+    private long synced;
+    private long failedThrough;
+    private IOException syncError;
+
+    private CredentialStore(Path path, long fsyncMs) {
+        this.path = path;
+        this.fsyncMs = fsyncMs;
+    }
+
+    static CredentialStore open(Path path, long fsyncMs) throws IOException {
+        CredentialStore store = new CredentialStore(path, fsyncMs);
+        store.load();
+        if (fsyncMs > 0) {
+            Thread flusher = new Thread(store::flushLoop, "CredentialStore-fsync");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+        return store;
+    }
+
+    /**
+     * @return the stored credential, or null for an unknown username
+     */
+    AuthServer.UserCredential get(String username) throws IOException {
+        int hash = hash(username);
+        lock.readLock().lock();
+        try {
+            int slot = find(username, hash);
+            if (slot < 0) return null;
+            Record record = read(offsets[slot]);
+            return new AuthServer.UserCredential(Base64.getEncoder().encodeToString(record.hash), record.salt);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    boolean contains(String username) throws IOException {
+        int hash = hash(username);
+        lock.readLock().lock();
+        try {
+            return find(username, hash) >= 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Add an account and wait until its record is on disk
+     * @return false if the username is taken
+     */
+    boolean putIfAbsent(String username, AuthServer.UserCredential credential) throws IOException {
+        byte[] record = encode(username, credential.salt, Base64.getDecoder().decode(credential.hashedPassword));
+        int hash = hash(username);
+        long seq;
+        lock.writeLock().lock();
+        try {
+            if (find(username, hash) >= 0 || pending.containsKey(username)) return false;
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, end + buffer.position());
+            }
+            pending.put(username, end);
+            end += record.length;
+            seq = ++written;
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        boolean durable = false;
+        try {
+            if (fsyncMs == 0) {
+                sync();
+            } else if (fsyncMs > 0) {
+                awaitSync(seq);
+            }
+            durable = true;
+        } finally {
+            lock.writeLock().lock();
+            try {
+                // Compaction may have moved the record meanwhile
+                long offset = pending.remove(username);
+                if (durable) {
+                    insert(-find(username, hash) - 1, hash, offset);
+                } else {
+                    discard(offset, record);
+                    dead += record.length;
+                    compactIfWasteful();
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        return true;
+    }
+
+    // Break the checksum of a record whose sync failed, load() then skips it
+    private void discard(long offset, byte[] record) {
+        ByteBuffer checksum = ByteBuffer.allocate(4).putInt(0, ~ByteBuffer.wrap(record).getInt(record.length - 4));
+        try {
+            while (checksum.hasRemaining()) {
+                channel.write(checksum, offset + record.length - 4 + checksum.position());
+            }
+        } catch (IOException e) {
+            System.err.println("[AUTH] Failed to discard unsynced credential record: " + e.getMessage());
+        }
+    }
+
+    int size() {
+        lock.readLock().lock();
+        try {
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void load() throws IOException {
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long fileSize = channel.size();
+        if (fileSize == 0) {
+            channel.write(ByteBuffer.wrap(MAGIC), 0);
+            channel.force(false);
+            end = MAGIC.length;
+            return;
+        }
+        long offset = MAGIC.length;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+            Channels.newInputStream(channel.position(0)), 256 * 1024));
+        byte[] magic = new byte[MAGIC.length];
+        try {
+            in.readFully(magic);
+        } catch (EOFException e) {
+            throw new IOException("not a credential store: " + path);
+        }
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("not a credential store: " + path);
+        }
+        byte[] body = new byte[MAX_BODY];
+        CRC32 crc = new CRC32();
+        while (offset < fileSize) {
+            int length;
+            int checksum;
+            try {
+                length = in.readInt();
+                if (length < MIN_BODY || length > MAX_BODY) break;
+                in.readFully(body, 0, length);
+                checksum = in.readInt();
+            } catch (EOFException e) {
+                break;
+            }
+            long recordOffset = offset;
+            offset += 4 + length + 4;
+            end = offset;
+            crc.reset();
+            crc.update(body, 0, length);
+            if ((int) crc.getValue() != checksum) {
+                dead += 4 + length + 4;
+                continue;
+            }
+            String username = new String(body, 2, ((body[0] & 0xFF) << 8) | (body[1] & 0xFF), StandardCharsets.UTF_8);
+            int hash = hash(username);
+            int slot = find(username, hash);
+            if (slot >= 0) {
+                // A later record for the same name wins
+                dead += 4 + read(offsets[slot]).bodyLength + 4;
+                offsets[slot] = recordOffset;
+            } else {
+                insert(-slot - 1, hash, recordOffset);
+            }
+        }
+        end = offset;
+        long torn = fileSize - offset;
+        if (torn > 0) {
+            System.err.println("[AUTH] Dropping " + torn + " unreadable bytes at the end of " + path);
+            if (torn > 4 + MAX_BODY + 4) {
+                // More than one torn record: keep the original for inspection
+                Files.copy(path, path.resolveSibling(path.getFileName() + ".corrupt-" + System.currentTimeMillis()));
+            }
+            channel.truncate(offset);
+        }
+        if (dead > 0) {
+            compact();
+        }
+    }
+
+    // Compact regardless of how much is dead
+    void compactNow() throws IOException {
+        lock.writeLock().lock();
+        try {
+            compact();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void compactIfWasteful() {
+        if (dead < COMPACT_MIN_DEAD || dead * 2 < end - MAGIC.length) return;
+        try {
+            compact();
+        } catch (IOException e) {
+            System.err.println("[AUTH] Failed to compact credential store: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Rewrite the file with only the records the index or a waiting registration points
+     * at. Callers hold the write lock (or run before the store is shared, while loading).
+     * The new file is forced before it replaces the old one, so it also syncs every
+     * record written so far.
+     */
+    private void compact() throws IOException {
+        long started = System.currentTimeMillis();
+        Path tmp = path.resolveSibling(path.getFileName() + ".compact");
+        long[] moved = offsets.clone();
+        Map<Long, String> pendingAt = new HashMap<>();
+        for (Map.Entry<String, Long> entry : pending.entrySet()) {
+            pendingAt.put(entry.getValue(), entry.getKey());
+        }
+        Map<String, Long> movedPending = new HashMap<>();
+        long offset;
+        // Read through a channel of its own, closing the stream must not close the one in use
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                 Channels.newInputStream(FileChannel.open(path, StandardOpenOption.READ).position(MAGIC.length)),
+                 256 * 1024));
+             OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp), 256 * 1024)) {
+            out.write(MAGIC);
+            long position = MAGIC.length;
+            long newPosition = MAGIC.length;
+            byte[] body = new byte[MAX_BODY];
+            while (position < end) {
+                int length = in.readInt();
+                in.readFully(body, 0, length);
+                int checksum = in.readInt();
+                long recordOffset = position;
+                position += 4 + length + 4;
+                int slot = slotOf(body, recordOffset);
+                String waiting = pendingAt.get(recordOffset);
+                if (slot < 0 && waiting == null) continue;
+                if (slot >= 0) {
+                    moved[slot] = newPosition;
+                } else {
+                    movedPending.put(waiting, newPosition);
+                }
+                out.write(ByteBuffer.allocate(4).putInt(0, length).array());
+                out.write(body, 0, length);
+                out.write(ByteBuffer.allocate(4).putInt(0, checksum).array());
+                newPosition += 4 + length + 4;
+            }
+            offset = newPosition;
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        try (FileChannel copy = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            copy.force(true);
+        }
+        try {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+        FileChannel old = channel;
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        old.close();
+        offsets = moved;
+        pending.putAll(movedPending);
+        end = offset;
+        long dropped = dead;
+        dead = 0;
+        markSynced(written);
+        System.out.println("[AUTH] Compacted " + path + ": " + dropped + " dead bytes dropped in "
+            + (System.currentTimeMillis() - started) + " ms");
+    }
+
+    // Slot whose offset is this record, or -1 if the record is dead; no disk reads needed
+    private int slotOf(byte[] body, long recordOffset) {
+        String username = new String(body, 2, ((body[0] & 0xFF) << 8) | (body[1] & 0xFF), StandardCharsets.UTF_8);
+        int hash = hash(username);
+        int mask = hashes.length - 1;
+        for (int i = hash & mask; hashes[i] != 0; i = (i + 1) & mask) {
+            if (hashes[i] == hash && offsets[i] == recordOffset) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the slot holding username, or -(free slot + 1) where it would go
+     */
+    private int find(String username, int hash) throws IOException {
+        int mask = hashes.length - 1;
+        int i = hash & mask;
+        for (; hashes[i] != 0; i = (i + 1) & mask) {
+            if (hashes[i] == hash && read(offsets[i]).username.equals(username)) return i;
+        }
+        return -i - 1;
+    }
+
+    private void insert(int slot, int hash, long offset) {
+        hashes[slot] = hash;
+        offsets[slot] = offset;
+        // Keep the table at most half full so probe chains stay short
+        if (++count * 2 > hashes.length) {
+            int[] oldHashes = hashes;
+            long[] oldOffsets = offsets;
+            hashes = new int[oldHashes.length * 2];
+            offsets = new long[oldOffsets.length * 2];
+            int mask = hashes.length - 1;
+            for (int j = 0; j < oldHashes.length; j++) {
+                if (oldHashes[j] == 0) continue;
+                int i = oldHashes[j] & mask;
+                while (hashes[i] != 0) i = (i + 1) & mask;
+                hashes[i] = oldHashes[j];
+                offsets[i] = oldOffsets[j];
+            }
+        }
+    }
+
+    private static int hash(String username) {
+        int h = username.hashCode() * 0x9E3779B9;
+        h ^= h >>> 16;
+        return h != 0 ? h : 1;
+    }
+
+    private static class Record {
+        final int bodyLength;
+        final String username;
+        final byte[] salt;
+        final byte[] hash;
+
+        Record(int bodyLength, String username, byte[] salt, byte[] hash) {
+            this.bodyLength = bodyLength;
+            this.username = username;
+            this.salt = salt;
+            this.hash = hash;
+        }
+    }
+
+    private Record read(long offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(4 + MAX_BODY + 4, end - offset));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) break;
+        }
+        buffer.flip();
+        int length = buffer.getInt();
+        byte[] name = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(name);
+        byte[] salt = new byte[buffer.get() & 0xFF];
+        buffer.get(salt);
+        byte[] hash = new byte[buffer.get() & 0xFF];
+        buffer.get(hash);
+        return new Record(length, new String(name, StandardCharsets.UTF_8), salt, hash);
+    }
+
+    private static byte[] encode(String username, byte[] salt, byte[] hash) {
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        int length = 2 + name.length + 1 + salt.length + 1 + hash.length;
+        if (name.length > 0xFFFF || salt.length > 0xFF || hash.length > 0xFF || length > MAX_BODY) {
+            throw new IllegalArgumentException("credential record too large");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length + 4);
+        buffer.putInt(length)
+            .putShort((short) name.length).put(name)
+            .put((byte) salt.length).put(salt)
+            .put((byte) hash.length).put(hash);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 4, length);
+        buffer.putInt((int) crc.getValue());
+        return buffer.array();
+    }
+
+    private void awaitSync(long seq) throws IOException {
+        synchronized (syncMonitor) {
+            while (synced < seq && failedThrough < seq) {
+                try {
+                    syncMonitor.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted waiting for fsync");
+                }
+            }
+            if (synced < seq) throw syncError;
+        }
+    }
+
+    /**
+     * Force every record written so far. Writers are not held up meanwhile: force runs
+     * alongside their positional writes, only the snapshot is taken under the lock.
+     */
+    private void sync() throws IOException {
+        long target;
+        FileChannel forced;
+        lock.readLock().lock();
+        try {
+            target = written;
+            forced = channel;
+        } finally {
+            lock.readLock().unlock();
+        }
+        try {
+            forced.force(false);
+        } catch (IOException e) {
+            // Closed by compact(), which forced the new file with all of these records
+            if (!(e instanceof ClosedChannelException) || forced == channel) {
+                synchronized (syncMonitor) {
+                    failedThrough = Math.max(failedThrough, target);
+                    syncError = e;
+                    syncMonitor.notifyAll();
+                }
+                throw e;
+            }
+        }
+        markSynced(target);
+    }
+
+    private void markSynced(long target) {
+        synchronized (syncMonitor) {
+            synced = Math.max(synced, target);
+            syncMonitor.notifyAll();
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            try {
+                Thread.sleep(fsyncMs);
+            } catch (InterruptedException e) {
+                return;
+            }
+            synchronized (syncMonitor) {
+                if (written <= synced) continue;
+            }
+            try {
+                sync();
+            } catch (IOException e) {
+                System.err.println("[AUTH] Failed to fsync credential store: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package devserver;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Runs file I/O off the WebSocket threads. Work for one transfer always goes to the
+ * same single-threaded lane, so its chunks, FILE_END and cleanup run in submission
+ * order; different transfers spread over the lanes.
+ *
+ * Lane queues are bounded. When a lane is full the task is refused straight away
+ * with an error instead of blocking the caller, so a stalled disk slows uploads
+ * down but never holds up message routing.
+ */
+class DiskWriter {
+    static final String BUSY = "Server busy writing to disk, retry later";
+
+    private final ThreadPoolExecutor[] lanes;
+
+    DiskWriter(int laneCount, int queueCapacity) {
+        this.lanes = new ThreadPoolExecutor[Math.max(1, laneCount)];
+        for (int i = 0; i < lanes.length; i++) {
+            final int index = i;
+            lanes[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> {
+                    Thread t = new Thread(r, "disk-writer-" + index);
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        }
+    }
+
+    /**
+     * @return future of the task's result: null on success, otherwise an error message
+     */
+    CompletableFuture<String> submit(String transferKey, Supplier<String> task) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        int index = Math.floorMod(transferKey == null ? 0 : transferKey.hashCode(), lanes.length);
+        try {
+            lanes[index].execute(() -> {
+                try {
+                    result.complete(task.get());
+                } catch (Exception e) {
+                    result.complete("File operation failed: " + e.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.complete(BUSY);
+        }
+        return result;
+    }
+
+    int queueDepth() {
+        int depth = 0;
+        for (ThreadPoolExecutor lane : lanes) {
+            depth += lane.getQueue().size();
+        }
+        return depth;
+    }
+
+    void shutdown() {
+        for (ThreadPoolExecutor lane : lanes) {
+            lane.shutdown();
+        }
+    }
+}
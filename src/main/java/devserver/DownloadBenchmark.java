@@ -0,0 +1,147 @@
+package devserver;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Download throughput and memory: starts a FileServer, writes one --size-mb file into
+ * ./uploads/files and fetches it --clients times concurrently, sampling heap and RSS
+ * while the downloads run.
+ *
+ * Usage:
+ *   mvn exec:java -Dexec.mainClass=devserver.DownloadBenchmark \
+ *       -Dexec.args="--clients=50 --size-mb=200"
+ *
+ * RSS comes from /proc/self/status and is only reported on Linux. Client and server
+ * share the JVM; the clients read into a 64KB buffer each.
+ */
+public class DownloadBenchmark {
+    private static final String FILE_NAME = "benchdl-download.bin";
+
+    private final Map<String, String> options;
+
+    DownloadBenchmark(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) continue;
+            String[] kv = arg.substring(2).split("=", 2);
+            options.put(kv[0], kv.length > 1 ? kv[1] : "true");
+        }
+        new DownloadBenchmark(options).run();
+        System.exit(0);
+    }
+
+    void run() throws Exception {
+        int clients = (int) longOpt("clients", 50);
+        long size = longOpt("size-mb", 200) << 20;
+        int port = (int) longOpt("port", 18081);
+
+        Path file = Paths.get("./uploads/files", FILE_NAME);
+        Files.createDirectories(file.getParent());
+        writeTestFile(file, size);
+        FileServer.start(null, port);
+
+        long baseRss = rssKb("VmRSS");
+        AtomicLong received = new AtomicLong();
+        AtomicLong failures = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(clients);
+        long started = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    received.addAndGet(download("http://127.0.0.1:" + port + "/uploads/files/" + FILE_NAME));
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                    System.err.println("[BENCH] download failed: " + e.getMessage());
+                } finally {
+                    done.countDown();
+                }
+            }, "bench-download-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        long peakHeap = 0;
+        long peakRss = 0;
+        while (done.getCount() > 0) {
+            Runtime rt = Runtime.getRuntime();
+            peakHeap = Math.max(peakHeap, rt.totalMemory() - rt.freeMemory());
+            peakRss = Math.max(peakRss, rssKb("VmRSS"));
+            Thread.sleep(50);
+        }
+        double seconds = (System.nanoTime() - started) / 1e9;
+
+        System.out.println("[BENCH] " + clients + " x " + (size >> 20) + " MB: " + (received.get() >> 20)
+            + " MB in " + String.format("%.1f", seconds) + " s (" + String.format("%.0f", received.get() / seconds / (1 << 20))
+            + " MB/s), " + failures.get() + " failed");
+        System.out.println("[BENCH] peak heap used " + (peakHeap >> 20) + " MB, RSS " + (baseRss >> 10)
+            + " MB before -> " + (peakRss >> 10) + " MB peak");
+
+        Files.deleteIfExists(file);
+    }
+
+    private static long download(String url) throws Exception {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        byte[] buffer = new byte[64 * 1024];
+        long total = 0;
+        try (InputStream in = conn.getInputStream()) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                total += n;
+            }
+        }
+        if (total != conn.getContentLengthLong()) {
+            throw new IllegalStateException("short download: " + total);
+        }
+        return total;
+    }
+
+    private static void writeTestFile(Path file, long size) throws Exception {
+        byte[] block = new byte[1 << 20];
+        new Random(7).nextBytes(block);
+        try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (long written = 0; written < size; written += block.length) {
+                ByteBuffer buffer = ByteBuffer.wrap(block, 0, (int) Math.min(block.length, size - written));
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+            }
+        }
+    }
+
+    // 0 where /proc is not available
+    private static long rssKb(String field) {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"), StandardCharsets.UTF_8)) {
+                if (line.startsWith(field + ":")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (Exception e) {
+            // not Linux
+        }
+        return 0;
+    }
+
+    private long longOpt(String key, long def) {
+        return options.containsKey(key) ? Long.parseLong(options.get(key)) : def;
+    }
+}
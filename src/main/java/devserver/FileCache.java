@@ -0,0 +1,302 @@
+package devserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Validators and hot-file mappings for FileServer downloads.
+ *
+ * Stored files are hardlinks into the content-addressed objects directory, so the
+ * object sharing a file's inode is named by its SHA-256, which becomes the strong
+ * ETag. objects/ is listed at most every REINDEX_MS; files without such an object
+ * (e.g. copies on filesystems without hardlinks), or with one newer than the last
+ * listing, are hashed once.
+ *
+ * Files in the FileCatalog skip all of that, their metadata is taken as given as long
+ * as the file on disk still has the catalogued size and, once cached, the same inode
+ * and mtime.
+ *
+ * Entries are LRU-evicted. A file requested ADMIT_AFTER_HITS times is memory-mapped,
+ * within a total budget, and then served without opening or reading it again.
+ * Stored files never change once written, so an entry is only re-checked with a stat
+ * every REVALIDATE_MS to notice deletions.
+ */
+class FileCache {
+    private static final int MAX_ENTRIES = 4096;
+    private static final long MAX_MAPPED_BYTES = 256L * 1024 * 1024;
+    private static final long MAX_MAPPED_FILE = 32L * 1024 * 1024;
+    private static final int ADMIT_AFTER_HITS = 2;
+    private static final long REVALIDATE_MS = 1000;
+    // objects/ is listed at most this often to learn about new objects
+    private static final long REINDEX_MS = 10_000;
+
+    static class Entry {
+        final Path path;
+        final long size;
+        final long lastModified;
+        // As stat reported it, lastModified of a catalogued file is the catalog's
+        final long diskModified;
+        final Object fileKey;
+        final String etag;
+        MappedByteBuffer mapped;
+        int hits;
+        long checkedAt;
+
+        Entry(Path path, BasicFileAttributes attrs, String etag) {
+            this(path, attrs.size(), attrs.lastModifiedTime().toMillis(), attrs, etag);
+        }
+
+        Entry(Path path, long size, long lastModified, BasicFileAttributes attrs, String etag) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.diskModified = attrs.lastModifiedTime().toMillis();
+            this.fileKey = attrs.fileKey();
+            this.etag = etag;
+            this.checkedAt = System.currentTimeMillis();
+        }
+
+        boolean sameFile(BasicFileAttributes attrs) {
+            return attrs.size() == size && attrs.lastModifiedTime().toMillis() == diskModified
+                && (fileKey == null || fileKey.equals(attrs.fileKey()));
+        }
+
+        /**
+         * The mapped bytes [start, start + length), or null if the file is not mapped
+         */
+        ByteBuffer slice(long start, long length) {
+            MappedByteBuffer m = mapped;
+            if (m == null) return null;
+            ByteBuffer view = m.duplicate();
+            view.limit((int) (start + length)).position((int) start);
+            return view;
+        }
+    }
+
+    private final Path objectsDir;
+    private final Map<Object, String> objectHashes = new ConcurrentHashMap<>(); // inode -> sha256
+    private final AtomicLong indexedAt = new AtomicLong();
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long mappedBytes;
+
+    FileCache(Path objectsDir) {
+        this.objectsDir = objectsDir;
+    }
+
+    /**
+     * Entry for a file the catalog already describes: nothing is hashed, the file is
+     * only checked with a stat every REVALIDATE_MS
+     * @return null if the file is gone or no longer the one catalogued
+     */
+    Entry lookup(Path path, FileCatalog.Entry known) throws IOException {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(path);
+        }
+        if (entry != null && (entry.size != known.storedSize() || !entry.etag.equals(known.storedEtag()))) {
+            entry = null; // catalogued anew since, e.g. gzipped
+        }
+        long now = System.currentTimeMillis();
+        if (entry != null && now - entry.checkedAt < REVALIDATE_MS) {
+            return admit(entry);
+        }
+
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            remove(path);
+            return null;
+        }
+        if (entry != null && entry.sameFile(attrs)) {
+            entry.checkedAt = now;
+            return admit(entry);
+        }
+        if (entry != null || !attrs.isRegularFile() || attrs.size() != known.storedSize()) {
+            remove(path);
+            return null;
+        }
+
+        Entry fresh = new Entry(path, known.storedSize(), known.lastModified, attrs, known.storedEtag());
+        synchronized (this) {
+            Entry old = entries.put(path, fresh);
+            if (old != null) unmap(old);
+            evictOverflow();
+        }
+        return admit(fresh);
+    }
+
+    /**
+     * @return the entry for a regular file, or null if there is none
+     */
+    Entry lookup(Path path) throws IOException {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(path);
+        }
+        long now = System.currentTimeMillis();
+        if (entry != null && now - entry.checkedAt < REVALIDATE_MS) {
+            return admit(entry);
+        }
+
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            remove(path);
+            return null;
+        }
+        if (!attrs.isRegularFile()) {
+            return null;
+        }
+        if (entry != null && entry.sameFile(attrs)) {
+            entry.checkedAt = now;
+            return admit(entry);
+        }
+
+        Entry fresh = new Entry(path, attrs, "\"" + contentHash(path, attrs) + "\"");
+        synchronized (this) {
+            Entry old = entries.put(path, fresh);
+            if (old != null) unmap(old);
+            evictOverflow();
+        }
+        return admit(fresh);
+    }
+
+    private void evictOverflow() {
+        while (entries.size() > MAX_ENTRIES) {
+            Iterator<Entry> eldest = entries.values().iterator();
+            unmap(eldest.next());
+            eldest.remove();
+        }
+    }
+
+    private Entry admit(Entry entry) {
+        synchronized (this) {
+            entry.hits++;
+            if (entry.mapped != null || entry.hits < ADMIT_AFTER_HITS
+                    || entry.size == 0 || entry.size > MAX_MAPPED_FILE) {
+                return entry;
+            }
+            // Make room by dropping the least recently used mappings
+            Iterator<Entry> lru = entries.values().iterator();
+            while (mappedBytes + entry.size > MAX_MAPPED_BYTES && lru.hasNext()) {
+                Entry victim = lru.next();
+                if (victim != entry) unmap(victim);
+            }
+            if (mappedBytes + entry.size > MAX_MAPPED_BYTES) {
+                return entry;
+            }
+            try (FileChannel channel = FileChannel.open(entry.path, StandardOpenOption.READ)) {
+                entry.mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, entry.size);
+                mappedBytes += entry.size;
+            } catch (IOException e) {
+                System.err.println("[HTTP] Failed to map " + entry.path.getFileName() + ": " + e.getMessage());
+            }
+            return entry;
+        }
+    }
+
+    synchronized void remove(Path path) {
+        Entry old = entries.remove(path);
+        if (old != null) unmap(old);
+    }
+
+    // The mapping itself goes away once the buffer is collected
+    private void unmap(Entry entry) {
+        if (entry.mapped != null) {
+            mappedBytes -= entry.size;
+            entry.mapped = null;
+        }
+    }
+
+    private String contentHash(Path path, BasicFileAttributes attrs) throws IOException {
+        Object key = attrs.fileKey();
+        if (key != null) {
+            String sha = objectHash(key);
+            if (sha == null && indexDue()) {
+                indexObjects();
+                sha = objectHash(key);
+            }
+            if (sha != null) return sha;
+        }
+        return hashFile(path);
+    }
+
+    // The object's name, as long as it is still that inode: collected objects free theirs for reuse
+    private String objectHash(Object key) {
+        String sha = objectHashes.get(key);
+        if (sha == null) return null;
+        try {
+            if (key.equals(Files.readAttributes(objectsDir.resolve(sha), BasicFileAttributes.class).fileKey())) {
+                return sha;
+            }
+        } catch (IOException e) {
+            // collected
+        }
+        objectHashes.remove(key, sha);
+        return null;
+    }
+
+    private boolean indexDue() {
+        long now = System.currentTimeMillis();
+        long last = indexedAt.get();
+        return now - last >= REINDEX_MS && indexedAt.compareAndSet(last, now);
+    }
+
+    private void indexObjects() {
+        if (!Files.isDirectory(objectsDir)) return;
+        Map<Object, String> found = new HashMap<>();
+        try (DirectoryStream<Path> objects = Files.newDirectoryStream(objectsDir)) {
+            for (Path object : objects) {
+                String name = object.getFileName().toString();
+                if (!name.matches("[0-9a-f]{64}")) continue;
+                Object key = Files.readAttributes(object, BasicFileAttributes.class).fileKey();
+                if (key != null) found.put(key, name);
+            }
+        } catch (IOException e) {
+            System.err.println("[HTTP] Failed to index stored objects: " + e.getMessage());
+            return;
+        }
+        objectHashes.keySet().retainAll(found.keySet());
+        objectHashes.putAll(found);
+    }
+
+    private static String hashFile(Path path) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (channel.read(buffer) > 0 || buffer.position() > 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,239 @@
+package devserver;
+
+import org.json.JSONObject;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.UnaryOperator;
+
+/**
+ * Completed uploads by file id: original name, size, MIME type and content hash, so
+ * FileServer can answer a download from memory instead of parsing the on-disk name
+ * and stat'ing the file.
+ *
+ * FileTransferManager adds an entry at FILE_END, ThumbnailGenerator later adds the
+ * previews of images and FileCompressor marks text files it stored gzipped. Entries
+ * are appended to a JSON-lines manifest, which is replayed and compacted at startup.
+ */
+class FileCatalog {
+
+    static class Entry {
+        final String fileId;
+        final String name;
+        final long size;
+        final String mimeType;
+        final String sha256;
+        final long lastModified;
+        // Longest edge in px -> preview stored next to the original, by ascending size
+        final Map<Integer, Entry> thumbnails;
+        // Stored as "<diskName>.gz" of gzippedSize bytes; size stays the original's
+        final boolean gzipped;
+        final long gzippedSize;
+
+        Entry(String fileId, String name, long size, String mimeType, String sha256, long lastModified) {
+            this(fileId, name, size, mimeType, sha256, lastModified, Collections.emptyMap(), false, 0);
+        }
+
+        private Entry(String fileId, String name, long size, String mimeType, String sha256, long lastModified,
+                      Map<Integer, Entry> thumbnails, boolean gzipped, long gzippedSize) {
+            this.fileId = fileId;
+            this.name = name;
+            this.size = size;
+            this.mimeType = mimeType;
+            this.sha256 = sha256;
+            this.lastModified = lastModified;
+            this.thumbnails = Collections.unmodifiableMap(new TreeMap<>(thumbnails));
+            this.gzipped = gzipped;
+            this.gzippedSize = gzippedSize;
+        }
+
+        Entry withThumbnails(Map<Integer, Entry> thumbnails) {
+            return new Entry(fileId, name, size, mimeType, sha256, lastModified, thumbnails, gzipped, gzippedSize);
+        }
+
+        Entry withGzip(long gzippedSize) {
+            return new Entry(fileId, name, size, mimeType, sha256, lastModified, thumbnails, true, gzippedSize);
+        }
+
+        // Name of the bytes actually on disk
+        String storedName() {
+            return gzipped ? diskName() + ".gz" : diskName();
+        }
+
+        long storedSize() {
+            return gzipped ? gzippedSize : size;
+        }
+
+        // The gzip encoding is a different representation and needs its own strong ETag
+        String storedEtag() {
+            return gzipped ? "\"" + sha256 + "-gzip\"" : etag();
+        }
+
+        /**
+         * @return the smallest preview at least px on its longest edge, or null if the
+         *         original is needed
+         */
+        Entry thumbnail(int px) {
+            for (Map.Entry<Integer, Entry> thumb : thumbnails.entrySet()) {
+                if (thumb.getKey() >= px) return thumb.getValue();
+            }
+            return null;
+        }
+
+        // Name of the file under uploads/files
+        String diskName() {
+            return fileId + "-" + name;
+        }
+
+        String etag() {
+            return "\"" + sha256 + "\"";
+        }
+
+        JSONObject toJson() {
+            JSONObject json = new JSONObject()
+                .put("id", fileId)
+                .put("name", name)
+                .put("size", size)
+                .put("type", mimeType)
+                .put("sha256", sha256)
+                .put("mtime", lastModified);
+            if (gzipped) {
+                json.put("gzip", gzippedSize);
+            }
+            if (!thumbnails.isEmpty()) {
+                JSONObject thumbs = new JSONObject();
+                for (Map.Entry<Integer, Entry> thumb : thumbnails.entrySet()) {
+                    thumbs.put(String.valueOf(thumb.getKey()), thumb.getValue().toJson());
+                }
+                json.put("thumbs", thumbs);
+            }
+            return json;
+        }
+
+        static Entry fromJson(JSONObject json) {
+            Map<Integer, Entry> thumbnails = new TreeMap<>();
+            JSONObject thumbs = json.optJSONObject("thumbs");
+            if (thumbs != null) {
+                for (String px : thumbs.keySet()) {
+                    thumbnails.put(Integer.parseInt(px), fromJson(thumbs.getJSONObject(px)));
+                }
+            }
+            return new Entry(json.getString("id"), json.getString("name"), json.getLong("size"),
+                json.optString("type", "application/octet-stream"), json.getString("sha256"), json.getLong("mtime"),
+                thumbnails, json.has("gzip"), json.optLong("gzip"));
+        }
+    }
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final TransferJournal manifest;
+
+    FileCatalog(Path manifestPath) {
+        this.manifest = new TransferJournal(manifestPath);
+        List<JSONObject> records = manifest.readAll();
+        for (JSONObject record : records) {
+            try {
+                Entry entry = Entry.fromJson(record);
+                entries.put(entry.fileId, entry);
+            } catch (Exception e) {
+                System.err.println("[FileTransfer] Skipping bad manifest record: " + e.getMessage());
+            }
+        }
+        // Later records replace earlier ones for the same id
+        if (records.size() > entries.size()) {
+            compact();
+        }
+    }
+
+    void add(Entry entry) {
+        entries.put(entry.fileId, entry);
+        manifest.append(entry.toJson());
+    }
+
+    /**
+     * Record the previews of a catalogued file; ignored if it was removed meanwhile
+     */
+    void addThumbnails(String fileId, Map<Integer, Entry> thumbnails) {
+        update(fileId, entry -> entry.withThumbnails(thumbnails));
+    }
+
+    /**
+     * Record that the file is now stored gzipped
+     * @return false if it was removed meanwhile
+     */
+    boolean markGzipped(String fileId, long gzippedSize) {
+        return update(fileId, entry -> entry.withGzip(gzippedSize));
+    }
+
+    private boolean update(String fileId, UnaryOperator<Entry> change) {
+        Entry updated = entries.computeIfPresent(fileId, (id, entry) -> change.apply(entry));
+        if (updated != null) {
+            manifest.append(updated.toJson());
+        }
+        return updated != null;
+    }
+
+    /**
+     * Remove the entry only if it is still the given one, not a newer state of the file
+     */
+    void remove(Entry entry) {
+        if (entries.remove(entry.fileId, entry)) {
+            compact();
+        }
+    }
+
+    Entry get(String fileId) {
+        return entries.get(fileId);
+    }
+
+    /**
+     * Look up a download by its on-disk name "<fileId>-<name>". File ids may contain
+     * dashes themselves, so every split point is tried.
+     */
+    Entry findByDiskName(String diskName) {
+        for (int dash = diskName.indexOf('-'); dash > 0; dash = diskName.indexOf('-', dash + 1)) {
+            Entry entry = entries.get(diskName.substring(0, dash));
+            if (entry != null && entry.diskName().equals(diskName)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    private void compact() {
+        manifest.compact(() -> {
+            List<JSONObject> records = new ArrayList<>();
+            for (Entry entry : entries.values()) {
+                records.add(entry.toJson());
+            }
+            return records;
+        });
+    }
+
+    static String mimeTypeOf(String fileName) {
+        String lowerName = fileName.toLowerCase();
+        if (lowerName.endsWith(".pdf")) return "application/pdf";
+        if (lowerName.endsWith(".jpg") || lowerName.endsWith(".jpeg")) return "image/jpeg";
+        if (lowerName.endsWith(".png")) return "image/png";
+        if (lowerName.endsWith(".gif")) return "image/gif";
+        if (lowerName.endsWith(".webp")) return "image/webp";
+        if (lowerName.endsWith(".txt") || lowerName.endsWith(".log")) return "text/plain";
+        if (lowerName.endsWith(".csv")) return "text/csv";
+        if (lowerName.endsWith(".md")) return "text/markdown";
+        if (lowerName.endsWith(".html") || lowerName.endsWith(".htm")) return "text/html";
+        if (lowerName.endsWith(".json")) return "application/json";
+        if (lowerName.endsWith(".xml")) return "application/xml";
+        if (lowerName.endsWith(".svg")) return "image/svg+xml";
+        if (lowerName.endsWith(".doc") || lowerName.endsWith(".docx")) return "application/vnd.openxmlformats-officedocument.wordprocessingml.document";
+        if (lowerName.endsWith(".xls") || lowerName.endsWith(".xlsx")) return "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet";
+        return "application/octet-stream";
+    }
+}
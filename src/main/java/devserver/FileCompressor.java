@@ -0,0 +1,158 @@
+package devserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzipped storage for text-like uploads, done in the background after FILE_END.
+ *
+ * A file qualifies by MIME type and by how well its first SAMPLE_SIZE bytes deflate.
+ * The gzipped copy becomes the stored object "objects/<sha256>.gz", linked as
+ * "files/<fileId>-<name>.gz", and the catalog entry records both sizes; the plain
+ * link is removed and its object left to FileTransferManager's object GC.
+ *
+ * FileServer sends the gzip bytes unchanged to clients that accept gzip and inflates
+ * them for the others.
+ */
+class FileCompressor {
+    private static final long MIN_SIZE = 4 * 1024;
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    // Only worth it when at least a fifth is saved
+    private static final double MAX_RATIO = 0.8;
+    private static final int QUEUE_CAPACITY = 256;
+
+    private final Path filesDir;
+    private final Path objectsDir;
+    private final Path tmpDir;
+    private final FileCatalog catalog;
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(QUEUE_CAPACITY), r -> {
+            Thread t = new Thread(r, "FileCompressor");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }, new ThreadPoolExecutor.AbortPolicy());
+
+    FileCompressor(Path filesDir, Path objectsDir, Path tmpDir, FileCatalog catalog) {
+        this.filesDir = filesDir;
+        this.objectsDir = objectsDir;
+        this.tmpDir = tmpDir;
+        this.catalog = catalog;
+    }
+
+    static boolean compressible(String mimeType) {
+        return mimeType.startsWith("text/") || mimeType.equals("application/json")
+            || mimeType.equals("application/xml") || mimeType.equals("image/svg+xml");
+    }
+
+    void submit(FileCatalog.Entry entry) {
+        if (entry.gzipped || entry.size < MIN_SIZE || !compressible(entry.mimeType)) {
+            return;
+        }
+        try {
+            executor.execute(() -> compress(entry));
+        } catch (RejectedExecutionException e) {
+            System.err.println("[FileTransfer] Compression queue full, storing " + entry.fileId + " as is");
+        }
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void compress(FileCatalog.Entry entry) {
+        Path original = filesDir.resolve(entry.diskName());
+        Path object = objectsDir.resolve(entry.sha256 + ".gz");
+        Path link = filesDir.resolve(entry.diskName() + ".gz");
+        try {
+            // Another upload of the same content may have been compressed already
+            if (!Files.exists(object)) {
+                if (sampleRatio(original) > MAX_RATIO) {
+                    return;
+                }
+                Path tmp = tmpDir.resolve(entry.sha256 + ".gz");
+                try (InputStream in = Files.newInputStream(original);
+                     OutputStream out = new GZIPOutputStream(Files.newOutputStream(tmp), 64 * 1024)) {
+                    in.transferTo(out);
+                }
+                if (Files.size(tmp) > entry.size * MAX_RATIO) {
+                    Files.delete(tmp); // the sample was not representative
+                    return;
+                }
+                try {
+                    Files.move(tmp, object, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tmp, object, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.deleteIfExists(link);
+            try {
+                Files.createLink(link, object);
+            } catch (UnsupportedOperationException e) {
+                Files.copy(object, link, StandardCopyOption.REPLACE_EXISTING);
+            }
+            long gzippedSize = Files.size(link);
+            if (!catalog.markGzipped(entry.fileId, gzippedSize)) {
+                Files.deleteIfExists(link); // removed while we were compressing
+                return;
+            }
+            Files.deleteIfExists(original);
+            System.out.println("[FileTransfer] Stored gzipped: " + entry.fileId + " (" + entry.size
+                + " -> " + gzippedSize + " bytes)");
+        } catch (IOException e) {
+            System.err.println("[FileTransfer] Failed to compress " + entry.fileId + ": " + e.getMessage());
+        }
+    }
+
+    // Deflated size over plain size for the start of the file
+    private static double sampleRatio(Path file) throws IOException {
+        byte[] sample = new byte[SAMPLE_SIZE];
+        int length;
+        try (InputStream in = Files.newInputStream(file)) {
+            length = in.readNBytes(sample, 0, SAMPLE_SIZE);
+        }
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+            byte[] out = new byte[SAMPLE_SIZE];
+            long deflated = 0;
+            while (!deflater.finished()) {
+                deflated += deflater.deflate(out);
+            }
+            return (double) deflated / Math.max(1, length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Check a gzip file against an expected plain size using its trailer, which holds
+     * the size modulo 2^32 (uploads are far below that)
+     */
+    static boolean inflatesTo(Path gzip, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(gzip, StandardOpenOption.READ)) {
+            if (channel.size() < 18) return false;
+            ByteBuffer trailer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            while (trailer.hasRemaining()) {
+                if (channel.read(trailer, channel.size() - 4 + trailer.position()) < 0) return false;
+            }
+            return (trailer.getInt(0) & 0xFFFFFFFFL) == (size & 0xFFFFFFFFL);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package devserver;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Relay mode for point-to-point file sends: chunks go straight from the sender to
+ * the recipient and never touch disk.
+ *
+ * Flow control is credit based. At most WINDOW chunks may be unacknowledged by the
+ * recipient; each recipient ACK is passed back to the sender as the credit for the
+ * next chunk. The unacknowledged chunks are the only thing kept in memory, so a
+ * transfer costs at most WINDOW chunks of heap whatever the file size.
+ *
+ * If the recipient goes away mid-transfer the session switches to store-and-forward:
+ * ChatServer writes the unacknowledged chunks to FileTransferManager and the sender
+ * fills the gaps (see FILE_STATUS).
+ */
+class FileRelay {
+    static final int WINDOW = 8;
+
+    static class Session {
+        final String fileId;
+        final String sender;
+        final String recipient;
+        final JSONObject startPayload; // kept for the store-and-forward fallback
+        final Map<String, JSONObject> unacked = new LinkedHashMap<>(); // chunk nonce -> FILE_CHUNK
+        boolean fallback;
+
+        Session(String fileId, String sender, String recipient, JSONObject startPayload) {
+            this.fileId = fileId;
+            this.sender = sender;
+            this.recipient = recipient;
+            this.startPayload = startPayload;
+        }
+    }
+
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * @return the new session, or null if this fileId is already being relayed
+     */
+    Session open(String fileId, String sender, String recipient, JSONObject startPayload) {
+        Session session = new Session(fileId, sender, recipient, startPayload);
+        return sessions.putIfAbsent(fileId, session) == null ? session : null;
+    }
+
+    Session get(String fileId) {
+        return fileId == null ? null : sessions.get(fileId);
+    }
+
+    void close(String fileId) {
+        sessions.remove(fileId);
+    }
+
+    /**
+     * Take a chunk into the window before it is forwarded
+     * @return error message, or null if the chunk may be forwarded
+     */
+    String admitChunk(Session session, JSONObject chunk) {
+        synchronized (session) {
+            if (session.unacked.size() >= WINDOW) {
+                return "Relay window full, wait for ACKs before sending more chunks";
+            }
+            session.unacked.put(chunk.optString("nonce"), chunk);
+            return null;
+        }
+    }
+
+    /**
+     * A recipient ACK for a relayed chunk
+     * @return the session whose sender should get the credit, or null if the ACK is not ours
+     */
+    Session onAck(String from, String msgRef) {
+        for (Session session : sessions.values()) {
+            if (!session.recipient.equals(from)) continue;
+            synchronized (session) {
+                if (session.unacked.remove(msgRef) != null) {
+                    return session;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sessions this user takes part in, as sender or recipient
+     */
+    List<Session> sessionsOf(String userId) {
+        List<Session> result = new ArrayList<>();
+        for (Session session : sessions.values()) {
+            if (session.sender.equals(userId) || session.recipient.equals(userId)) {
+                result.add(session);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Switch to store-and-forward; returns the chunks still in the window, which the
+     * caller must store because the recipient may never have seen them
+     */
+    List<JSONObject> startFallback(Session session) {
+        synchronized (session) {
+            session.fallback = true;
+            List<JSONObject> pending = new ArrayList<>(session.unacked.values());
+            session.unacked.clear();
+            return pending;
+        }
+    }
+}
@@ -1,104 +1,549 @@
 package devserver;
 
-import com.sun.net.httpserver.HttpServer;
-import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpExchange;
 
+import org.json.JSONObject;
+
 import java.io.*;
-import java.net.InetSocketAddress;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
 
 public class FileServer {
     private static final int PORT = 8081;
     private static final String UPLOADS_DIR = "./uploads/files";
+    private static final String MANIFEST = "./uploads/manifest.log"; // written by FileTransferManager
     private static final String ALLOWED_ORIGIN = "http://localhost:5173";
-    private static final long MAX_FILE_SIZE = 256 * 1024 * 1024;
+    private static final int MAX_CHUNK_SIZE = 512 * 1024;
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+    private static final Pattern RANGE_SPEC = Pattern.compile("(\\d*)-(\\d*)");
+    private static final int MAX_RANGES = 16;
+    // Handler pools, see HttpHost. Uploads block on the transfer scheduler, downloads on the client
+    private static final int DOWNLOAD_THREADS = 32;
+    private static final int DOWNLOAD_QUEUE = 256;
+    private static final int UPLOAD_THREADS = 8;
+    private static final int UPLOAD_QUEUE = 64;
+    private static final FileCache FILE_CACHE = new FileCache(Paths.get("./uploads/objects"));
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter
+        .ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
 
-    public static void start() {
-        try {
-            HttpServer server = HttpServer.create(new InetSocketAddress(PORT), 0);
+    // One reusable direct buffer per handler thread, sized for the largest chunk
+    private static final ThreadLocal<ByteBuffer> UPLOAD_BUFFER =
+        ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(MAX_CHUNK_SIZE));
 
-            // CORS headers for all responses
-            server.createContext("/uploads/files/", new HttpHandler() {
-                @Override
-                public void handle(HttpExchange exchange) throws IOException {
-                    exchange.getResponseHeaders().add("Access-Control-Allow-Origin", ALLOWED_ORIGIN);
-                    exchange.getResponseHeaders().add("Access-Control-Allow-Methods", "GET, OPTIONS");
-                    exchange.getResponseHeaders().add("Access-Control-Allow-Headers", "*");
-                    exchange.getResponseHeaders().add("Access-Control-Allow-Credentials", "true");
-
-                    if ("OPTIONS".equals(exchange.getRequestMethod())) {
-                        exchange.sendResponseHeaders(204, -1);
-                        return;
-                    }
+    public static void start() {
+        start(null);
+    }
 
-                    String requestPath = exchange.getRequestURI().getPath();
-                    String fileName = requestPath.substring("/uploads/files/".length());
+    /**
+     * @param transferManager shared with ChatServer so HTTP uploads use the same transfer
+     *                        ids and FILE_END finalization; null disables the upload endpoint
+     */
+    public static void start(FileTransferManager transferManager) {
+        start(transferManager, PORT);
+    }
 
-                    String sanitizedFileName = Paths.get(fileName).getFileName().toString();
-                    Path filePath = Paths.get(UPLOADS_DIR, sanitizedFileName).normalize().toAbsolutePath();
-                    Path uploadsPath = Paths.get(UPLOADS_DIR).normalize().toAbsolutePath();
+    static void start(FileTransferManager transferManager, int port) {
+        try {
+            HttpHost server = new HttpHost("HTTP", port);
+            // Without a transfer manager nothing is uploaded here, the manifest is only read
+            FileCatalog catalog = transferManager != null
+                ? transferManager.getCatalog() : new FileCatalog(Paths.get(MANIFEST));
 
-                    if (!filePath.startsWith(uploadsPath)) {
-                        String response = "Access denied";
-                        exchange.sendResponseHeaders(403, response.length());
-                        OutputStream os = exchange.getResponseBody();
-                        os.write(response.getBytes());
-                        os.close();
-                        return;
+            if (transferManager != null) {
+                // Binary upload: PUT/POST /uploads/transfers/<fileId> with Content-Range
+                server.context("/uploads/transfers/", "upload", UPLOAD_THREADS, UPLOAD_QUEUE, exchange -> {
+                    try {
+                        handleUpload(exchange, transferManager);
+                    } catch (Exception e) {
+                        System.err.println("[HTTP] Upload error: " + e.getMessage());
+                        sendJson(exchange, 500, "{\"error\": \"Internal server error\"}");
                     }
+                });
+            }
 
-                    if (Files.exists(filePath) && Files.isRegularFile(filePath)) {
-                        long fileSize = Files.size(filePath);
-                        if (fileSize > MAX_FILE_SIZE) {
-                            String response = "File too large";
-                            exchange.sendResponseHeaders(413, response.length());
-                            OutputStream os = exchange.getResponseBody();
-                            os.write(response.getBytes());
-                            os.close();
-                            return;
-                        }
-                        byte[] fileContent = Files.readAllBytes(filePath);
-
-                        // Set content type based on file extension
-                        String contentType = getContentType(fileName);
-                        exchange.getResponseHeaders().set("Content-Type", contentType);
-                        exchange.getResponseHeaders().set("Content-Disposition", "attachment; filename=\"" + getOriginalFileName(fileName) + "\"");
-
-                        exchange.sendResponseHeaders(200, fileContent.length);
-                        OutputStream os = exchange.getResponseBody();
-                        os.write(fileContent);
-                        os.close();
-                    } else {
-                        String response = "File not found";
-                        exchange.sendResponseHeaders(404, response.length());
-                        OutputStream os = exchange.getResponseBody();
-                        os.write(response.getBytes());
-                        os.close();
-                    }
+            // CORS headers for all responses
+            server.context("/uploads/files/", "download", DOWNLOAD_THREADS, DOWNLOAD_QUEUE, exchange -> {
+                try {
+                    handleDownload(exchange, catalog);
+                } catch (IOException e) {
+                    // Usually the client went away mid-download
+                    System.err.println("[HTTP] Download error: " + e.getMessage());
+                    exchange.close();
                 }
             });
 
-            server.setExecutor(null);
             server.start();
-            System.out.println("[HTTP] File server started on port " + PORT);
+            System.out.println("[HTTP] File server started on port " + port);
         } catch (IOException e) {
             System.err.println("[HTTP] Failed to start file server: " + e.getMessage());
         }
     }
 
-    private static String getContentType(String fileName) {
-        String lowerName = fileName.toLowerCase();
-        if (lowerName.endsWith(".pdf")) return "application/pdf";
-        if (lowerName.endsWith(".jpg") || lowerName.endsWith(".jpeg")) return "image/jpeg";
-        if (lowerName.endsWith(".png")) return "image/png";
-        if (lowerName.endsWith(".gif")) return "image/gif";
-        if (lowerName.endsWith(".txt")) return "text/plain";
-        if (lowerName.endsWith(".doc") || lowerName.endsWith(".docx")) return "application/vnd.openxmlformats-officedocument.wordprocessingml.document";
-        if (lowerName.endsWith(".xls") || lowerName.endsWith(".xlsx")) return "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet";
-        return "application/octet-stream";
+    /**
+     * Streams the file from its channel (or its mapping, see FileCache) to the response,
+     * so a download holds no more than the copy buffer in memory whatever the file size
+     */
+    private static void handleDownload(HttpExchange exchange, FileCatalog catalog) throws IOException {
+        exchange.getResponseHeaders().add("Access-Control-Allow-Origin", ALLOWED_ORIGIN);
+        exchange.getResponseHeaders().add("Access-Control-Allow-Methods", "GET, OPTIONS");
+        exchange.getResponseHeaders().add("Access-Control-Allow-Headers", "*");
+        exchange.getResponseHeaders().add("Access-Control-Allow-Credentials", "true");
+        exchange.getResponseHeaders().add("Access-Control-Expose-Headers", "Accept-Ranges, Content-Range, Content-Length, ETag");
+
+        if ("OPTIONS".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(204, -1);
+            return;
+        }
+
+        String requestPath = exchange.getRequestURI().getPath();
+        String fileName = requestPath.substring("/uploads/files/".length());
+
+        String sanitizedFileName = Paths.get(fileName).getFileName().toString();
+        Path filePath = Paths.get(UPLOADS_DIR, sanitizedFileName).normalize().toAbsolutePath();
+        Path uploadsPath = Paths.get(UPLOADS_DIR).normalize().toAbsolutePath();
+
+        if (!filePath.startsWith(uploadsPath)) {
+            String response = "Access denied";
+            exchange.sendResponseHeaders(403, response.length());
+            OutputStream os = exchange.getResponseBody();
+            os.write(response.getBytes());
+            os.close();
+            return;
+        }
+
+        // Uploads finished through FileTransferManager are in the catalog: no hashing, no name parsing
+        FileCatalog.Entry item = catalog.findByDiskName(sanitizedFileName);
+        // ?size=<px> asks for an image preview, see ThumbnailGenerator
+        int previewSize = requestedSize(exchange);
+        FileCatalog.Entry preview = item != null && previewSize > 0 ? item.thumbnail(previewSize) : null;
+        if (preview != null) {
+            item = preview;
+            filePath = Paths.get(UPLOADS_DIR, preview.diskName()).normalize().toAbsolutePath();
+        }
+        // Text files may be stored gzipped (see FileCompressor): sent as they are to clients
+        // accepting gzip, inflated on the fly for the rest
+        boolean gzipped = item != null && item.gzipped;
+        boolean inflate = gzipped && !acceptsGzip(exchange);
+        if (gzipped) {
+            filePath = Paths.get(UPLOADS_DIR, item.storedName()).normalize().toAbsolutePath();
+        }
+        FileCache.Entry entry = item != null ? FILE_CACHE.lookup(filePath, item) : FILE_CACHE.lookup(filePath);
+        if (entry == null) {
+            if (item != null) {
+                forgetCatalogued(catalog, item, preview);
+            }
+            String response = "File not found";
+            exchange.sendResponseHeaders(404, response.length());
+            OutputStream os = exchange.getResponseBody();
+            os.write(response.getBytes());
+            os.close();
+            return;
+        }
+
+        long fileSize = inflate ? item.size : entry.size;
+        String etag = inflate ? item.etag() : entry.etag;
+        String lastModified = HTTP_DATE.format(Instant.ofEpochMilli(entry.lastModified));
+
+        String contentType = item != null ? item.mimeType : FileCatalog.mimeTypeOf(fileName);
+        String originalName = item != null ? item.name : getOriginalFileName(fileName);
+        exchange.getResponseHeaders().set("Content-Disposition", "attachment; filename=\"" + originalName + "\"");
+        exchange.getResponseHeaders().set("Accept-Ranges", inflate ? "none" : "bytes");
+        exchange.getResponseHeaders().set("Last-Modified", lastModified);
+        exchange.getResponseHeaders().set("ETag", etag);
+        if (gzipped) {
+            exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+            if (!inflate) exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        // <fileId>-<name> is written once and never changes. A preview that is not there
+        // yet is answered with the original, which must not stick in caches for ?size=
+        boolean awaitingPreview = previewSize > 0 && preview == null && (item == null || item.thumbnails.isEmpty());
+        exchange.getResponseHeaders().set("Cache-Control",
+            awaitingPreview ? "no-cache" : "public, max-age=31536000, immutable");
+
+        if (notModified(exchange, etag, entry.lastModified)) {
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+
+        // If-Range: only resume if the file is still the one the client started on.
+        // Ranges of an inflated stream would mean decompressing up to the start, so not offered
+        String range = inflate ? null : exchange.getRequestHeaders().getFirst("Range");
+        String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        List<long[]> ranges = null;
+        if (range != null && (ifRange == null || ifRange.trim().equals(etag) || ifRange.trim().equals(lastModified))) {
+            ranges = parseRanges(range, fileSize);
+            // Content-Encoding would apply to the multipart body, not to each part
+            if (gzipped && ranges != null && ranges.size() > 1) ranges = null;
+        }
+
+        // Hot files are served from their mapping, everything else from a channel
+        FileChannel file = null;
+        if (entry.mapped == null || inflate) {
+            try {
+                file = FileChannel.open(filePath, StandardOpenOption.READ);
+            } catch (NoSuchFileException e) {
+                // Catalogued but deleted since
+                if (item != null) {
+                    forgetCatalogued(catalog, item, preview);
+                }
+                FILE_CACHE.remove(filePath);
+                exchange.getResponseHeaders().remove("ETag");
+                exchange.getResponseHeaders().remove("Cache-Control");
+                String response = "File not found";
+                exchange.sendResponseHeaders(404, response.length());
+                OutputStream os = exchange.getResponseBody();
+                os.write(response.getBytes());
+                os.close();
+                return;
+            }
+        }
+        try {
+            if (inflate) {
+                exchange.getResponseHeaders().set("Content-Type", contentType);
+                exchange.sendResponseHeaders(200, fileSize);
+                try (InputStream in = new GZIPInputStream(Channels.newInputStream(file), 64 * 1024);
+                     OutputStream os = exchange.getResponseBody()) {
+                    in.transferTo(os);
+                }
+            } else if (ranges == null) {
+                exchange.getResponseHeaders().set("Content-Type", contentType);
+                exchange.sendResponseHeaders(200, fileSize);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    sendRange(entry, file, 0, fileSize, os);
+                }
+            } else if (ranges.isEmpty()) {
+                exchange.getResponseHeaders().set("Content-Range", "bytes */" + fileSize);
+                exchange.sendResponseHeaders(416, -1);
+            } else if (ranges.size() == 1) {
+                long[] r = ranges.get(0);
+                exchange.getResponseHeaders().set("Content-Type", contentType);
+                exchange.getResponseHeaders().set("Content-Range", "bytes " + r[0] + "-" + r[1] + "/" + fileSize);
+                exchange.sendResponseHeaders(206, r[1] - r[0] + 1);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    sendRange(entry, file, r[0], r[1] - r[0] + 1, os);
+                }
+            } else {
+                sendMultipart(exchange, entry, file, ranges, contentType, fileSize);
+            }
+        } finally {
+            if (file != null) file.close();
+        }
+    }
+
+    // The catalogued file is gone or no longer the one described. A lost preview only drops the previews
+    private static void forgetCatalogued(FileCatalog catalog, FileCatalog.Entry item, FileCatalog.Entry preview) {
+        if (preview != null) {
+            catalog.addThumbnails(preview.fileId, Collections.emptyMap());
+        } else {
+            catalog.remove(item); // unless it was just replaced, e.g. by its gzipped copy
+        }
+    }
+
+    // gzip, or any coding, listed without q=0
+    private static boolean acceptsGzip(HttpExchange exchange) {
+        String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (accept == null) return false;
+        for (String coding : accept.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim();
+            if (name.equalsIgnoreCase("gzip") || name.equals("*")) {
+                return parts.length < 2 || !parts[1].trim().matches("q=0(\\.0{0,3})?");
+            }
+        }
+        return false;
+    }
+
+    // 0 when there is no ?size= or it is not a number
+    private static int requestedSize(HttpExchange exchange) {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) return 0;
+        for (String param : query.split("&")) {
+            if (param.startsWith("size=")) {
+                try {
+                    return Math.max(0, Integer.parseInt(param.substring("size=".length())));
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * If-None-Match wins over If-Modified-Since, as RFC 7232 requires
+     */
+    private static boolean notModified(HttpExchange exchange, String etag, long lastModifiedMs) {
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) tag = tag.substring(2);
+                if (tag.equals("*") || tag.equals(etag)) return true;
+            }
+            return false;
+        }
+        String ifModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+        if (ifModifiedSince != null) {
+            try {
+                long since = Instant.from(HTTP_DATE.parse(ifModifiedSince.trim())).toEpochMilli();
+                return lastModifiedMs / 1000 * 1000 <= since;
+            } catch (DateTimeException e) {
+                return false; // unparseable dates are ignored
+            }
+        }
+        return false;
+    }
+
+    /**
+     * multipart/byteranges; the body length is computed up front so the response
+     * is not chunk-encoded
+     */
+    private static void sendMultipart(HttpExchange exchange, FileCache.Entry entry, FileChannel file,
+                                      List<long[]> ranges, String contentType, long fileSize) throws IOException {
+        String boundary = UUID.randomUUID().toString().replace("-", "");
+        List<byte[]> partHeaders = new ArrayList<>();
+        long length = 0;
+        for (long[] r : ranges) {
+            byte[] header = ("\r\n--" + boundary + "\r\nContent-Type: " + contentType
+                + "\r\nContent-Range: bytes " + r[0] + "-" + r[1] + "/" + fileSize + "\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII);
+            partHeaders.add(header);
+            length += header.length + r[1] - r[0] + 1;
+        }
+        byte[] trailer = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        length += trailer.length;
+
+        exchange.getResponseHeaders().set("Content-Type", "multipart/byteranges; boundary=" + boundary);
+        exchange.sendResponseHeaders(206, length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            for (int i = 0; i < ranges.size(); i++) {
+                long[] r = ranges.get(i);
+                os.write(partHeaders.get(i));
+                sendRange(entry, file, r[0], r[1] - r[0] + 1, os);
+            }
+            os.write(trailer);
+        }
+    }
+
+    /**
+     * Parse "bytes=0-99,200-,-500" against the file size into sorted, merged inclusive
+     * ranges. Returns null when the header should be ignored (malformed, not bytes, or
+     * too many ranges) and an empty list when no range is satisfiable (416).
+     */
+    static List<long[]> parseRanges(String header, long size) {
+        header = header.trim();
+        if (!header.startsWith("bytes=")) {
+            return null;
+        }
+        List<long[]> ranges = new ArrayList<>();
+        for (String spec : header.substring(6).split(",")) {
+            Matcher m = RANGE_SPEC.matcher(spec.trim());
+            if (!m.matches() || (m.group(1).isEmpty() && m.group(2).isEmpty())) {
+                return null;
+            }
+            long start;
+            long end;
+            try {
+                if (m.group(1).isEmpty()) {
+                    // Suffix range: the last n bytes
+                    long suffix = Long.parseLong(m.group(2));
+                    if (suffix == 0) continue;
+                    start = Math.max(0, size - suffix);
+                    end = size - 1;
+                } else {
+                    start = Long.parseLong(m.group(1));
+                    end = m.group(2).isEmpty() ? size - 1 : Math.min(Long.parseLong(m.group(2)), size - 1);
+                    if (m.group(2).length() > 0 && Long.parseLong(m.group(2)) < start) {
+                        return null;
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (start < size && start <= end) {
+                ranges.add(new long[] {start, end});
+            }
+        }
+
+        ranges.sort((a, b) -> Long.compare(a[0], b[0]));
+        List<long[]> merged = new ArrayList<>();
+        for (long[] r : ranges) {
+            long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && r[0] <= last[1] + 1) {
+                last[1] = Math.max(last[1], r[1]);
+            } else {
+                merged.add(r);
+            }
+        }
+        return merged.size() > MAX_RANGES ? null : merged;
+    }
+
+    /**
+     * HttpServer only exposes the response as an OutputStream, so transferTo cannot hand
+     * the socket to sendfile; it copies through a small fixed-size buffer instead. A
+     * mapped file is written straight from its mapping.
+     */
+    private static void sendRange(FileCache.Entry entry, FileChannel file, long start, long length,
+                                  OutputStream os) throws IOException {
+        WritableByteChannel out = Channels.newChannel(os);
+        ByteBuffer mapped = entry.slice(start, length);
+        if (mapped != null) {
+            while (mapped.hasRemaining()) {
+                out.write(mapped);
+            }
+            return;
+        }
+        long position = start;
+        long end = start + length;
+        while (position < end) {
+            long sent = file.transferTo(position, end - position, out);
+            if (sent <= 0) {
+                throw new EOFException("File shrank while sending it");
+            }
+            position += sent;
+        }
+    }
+
+    /**
+     * Streams the request body to the transfer's part file one chunk at a time. The
+     * transfer must have been opened with FILE_START, and is finalized by FILE_END as usual.
+     * Content-Range must start on a chunk boundary and end on one (or at the end of the
+     * file), so a client can resume by re-sending any range of whole chunks.
+     */
+    private static void handleUpload(HttpExchange exchange, FileTransferManager transferManager) throws IOException {
+        exchange.getResponseHeaders().add("Access-Control-Allow-Origin", ALLOWED_ORIGIN);
+        exchange.getResponseHeaders().add("Access-Control-Allow-Methods", "PUT, POST, OPTIONS");
+        exchange.getResponseHeaders().add("Access-Control-Allow-Headers", "Content-Type, Authorization, Content-Range");
+        exchange.getResponseHeaders().add("Access-Control-Allow-Credentials", "true");
+
+        String method = exchange.getRequestMethod();
+        if ("OPTIONS".equals(method)) {
+            exchange.sendResponseHeaders(204, -1);
+            return;
+        }
+        if (!"PUT".equals(method) && !"POST".equals(method)) {
+            sendJson(exchange, 405, "{\"error\": \"Method not allowed\"}");
+            return;
+        }
+
+        String authHeader = exchange.getRequestHeaders().getFirst("Authorization");
+        String username = authHeader != null && authHeader.startsWith("Bearer ")
+            ? JwtService.validateToken(authHeader.substring(7)) : null;
+        if (username == null) {
+            sendJson(exchange, 401, "{\"error\": \"Invalid token\"}");
+            return;
+        }
+
+        String fileId = exchange.getRequestURI().getPath().substring("/uploads/transfers/".length());
+        FileTransferManager.FileMetadata metadata = transferManager.getTransferMetadata(fileId);
+        if (metadata == null) {
+            sendJson(exchange, 404, "{\"error\": \"File transfer not found\"}");
+            return;
+        }
+        // No owner (started without one, or restored from an old journal): nobody may upload over HTTP
+        if (metadata.owner == null || !metadata.owner.equals(username)) {
+            sendJson(exchange, 403, "{\"error\": \"Not the owner of this transfer\"}");
+            return;
+        }
+
+        long start = 0;
+        long end = metadata.totalSize - 1;
+        String contentRange = exchange.getRequestHeaders().getFirst("Content-Range");
+        if (contentRange != null) {
+            Matcher m = CONTENT_RANGE.matcher(contentRange.trim());
+            try {
+                if (!m.matches() || Long.parseLong(m.group(3)) != metadata.totalSize) {
+                    sendJson(exchange, 416, "{\"error\": \"Invalid Content-Range\"}");
+                    return;
+                }
+                start = Long.parseLong(m.group(1));
+                end = Long.parseLong(m.group(2));
+            } catch (NumberFormatException e) {
+                sendJson(exchange, 416, "{\"error\": \"Invalid Content-Range\"}");
+                return;
+            }
+        }
+        boolean endsOnChunk = (end + 1) % metadata.chunkSize == 0 || end + 1 == metadata.totalSize;
+        if (start > end || end >= metadata.totalSize || start % metadata.chunkSize != 0 || !endsOnChunk) {
+            sendJson(exchange, 416, "{\"error\": \"Content-Range must cover whole chunks\"}");
+            return;
+        }
+
+        ByteBuffer buffer = UPLOAD_BUFFER.get();
+        ReadableByteChannel body = Channels.newChannel(exchange.getRequestBody());
+        int chunkIndex = (int) (start / metadata.chunkSize);
+        long remaining = end - start + 1;
+
+        while (remaining > 0) {
+            int chunkLength = (int) Math.min(metadata.chunkSize, remaining);
+            // Over the bandwidth budget: stop reading the body until the scheduler admits the chunk
+            String admitError = transferManager.admit(username, fileId, chunkLength).join();
+            if (admitError != null) {
+                sendJson(exchange, 503, new JSONObject().put("error", admitError).toString());
+                return;
+            }
+            buffer.clear().limit(chunkLength);
+            while (buffer.hasRemaining()) {
+                if (body.read(buffer) < 0) {
+                    sendJson(exchange, 400, "{\"error\": \"Request body shorter than Content-Range\"}");
+                    return;
+                }
+            }
+            buffer.flip();
+
+            // On the transfer's writer lane like WebSocket chunks, so FILE_END or cleanup
+            // cannot close the file or release its buffer in the middle of this write
+            int index = chunkIndex;
+            String error = transferManager.submit(fileId,
+                () -> transferManager.handleChunkData(fileId, index, buffer, null)).join();
+            if (DiskWriter.BUSY.equals(error)) {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                sendJson(exchange, 503, new JSONObject().put("error", error).toString());
+                return;
+            }
+            if (error != null) {
+                sendJson(exchange, 400, new JSONObject().put("error", error).toString());
+                return;
+            }
+            chunkIndex++;
+            remaining -= chunkLength;
+        }
+
+        JSONObject response = new JSONObject();
+        response.put("file_id", fileId);
+        response.put("received_chunks", metadata.receivedChunks.size());
+        response.put("total_chunks", metadata.expectedChunks());
+        sendJson(exchange, 200, response.toString());
+    }
+
+    private static void sendJson(HttpExchange exchange, int statusCode, String response) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(statusCode, bytes.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(bytes);
+        os.close();
     }
 
     private static String getOriginalFileName(String fileName) {
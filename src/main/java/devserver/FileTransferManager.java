@@ -1,37 +1,109 @@
 package devserver;
 
+import org.json.JSONObject;
+
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
 
 public class FileTransferManager {
     private static final long MAX_FILE_SIZE = 256 * 1024 * 1024; // 256MB
     private static final int MAX_CHUNK_SIZE = 512 * 1024; // 512KB
+    private static final int DEFAULT_CHUNK_SIZE = 256 * 1024; // matches the frontend
     private static final String UPLOADS_DIR = "./uploads";
     private static final String TMP_DIR = UPLOADS_DIR + "/tmp";
     private static final String FILES_DIR = UPLOADS_DIR + "/files";
+    // Content-addressed store: objects/<sha256>; files/<fileId>-<name> are hardlinks to it
+    private static final String OBJECTS_DIR = UPLOADS_DIR + "/objects";
+    private static final long OBJECT_GC_MIN_AGE_MS = 10 * 60 * 1000;
+    // Chunks a client claiming stored content must send to show it has the bytes
+    private static final int PROOF_CHUNKS = 3;
+    private static final SecureRandom PROOF_RANDOM = new SecureRandom();
+    // Disk writer stage: a queued task holds one decoded chunk, so lanes x capacity
+    // bounds the memory parked behind a slow disk (4 x 32 x 512KB at most)
+    private static final int WRITER_LANES = 4;
+    private static final int WRITER_QUEUE_CAPACITY = 32;
+    // Upload bandwidth budgets in bytes per second, see TransferScheduler. Set in MB/s,
+    // unlimited unless configured
+    private static final long GLOBAL_UPLOAD_RATE = Long.getLong("devserver.upload.globalMbps", 0) << 20;
+    private static final long USER_UPLOAD_RATE = Long.getLong("devserver.upload.userMbps", 0) << 20;
+    private static final long TRANSFER_UPLOAD_RATE = Long.getLong("devserver.upload.transferMbps", 0) << 20;
+    // Uploads up to this size are assembled in memory and written once at FILE_END
+    private static final int DEFAULT_SMALL_UPLOAD_LIMIT = 1024 * 1024;
+    private static final long SMALL_UPLOAD_MEMORY = 64L * 1024 * 1024;
 
     private final Map<String, FileMetadata> activeTransfers = new ConcurrentHashMap<>();
+    private final TransferJournal journal = new TransferJournal(Paths.get(TMP_DIR, "journal.log"));
+    private final DiskWriter diskWriter = new DiskWriter(WRITER_LANES, WRITER_QUEUE_CAPACITY);
+    private final TransferScheduler scheduler;
+    private final FileCatalog catalog = new FileCatalog(Paths.get(UPLOADS_DIR, "manifest.log")); // read by FileServer too
+    private final ThumbnailGenerator thumbnails = new ThumbnailGenerator(Paths.get(FILES_DIR), catalog);
+    private final FileCompressor compressor = new FileCompressor(Paths.get(FILES_DIR), Paths.get(OBJECTS_DIR),
+        Paths.get(TMP_DIR), catalog);
+    private final int smallUploadLimit;
+    private final BufferPool smallUploads;
+    private final ScheduledExecutorService cleanupExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "FileTransferCleanup");
+        t.setDaemon(true);
+        return t;
+    });
 
     static class FileMetadata {
         String fileId;
         String fileName;
         long totalSize;
         String expectedSha256;
+        String expectedMerkleRoot;
         String mode;
+        String owner;
+        int chunkSize;
         Set<Integer> receivedChunks;
         long startTime;
-
-        FileMetadata(String fileId, String fileName, long totalSize, String sha256, String mode) {
+        Path partFile;
+        FileChannel channel;
+        ByteBuffer memory; // small uploads: the whole file, instead of partFile/channel
+        boolean inMemory;
+        boolean deduplicated; // content was already stored, only the proof chunks are needed
+        Set<Integer> proofChunks = Collections.emptySet();
+
+        // Integrity state: per-chunk hashes for the Merkle root, and a whole-file
+        // SHA-256 that advances over the contiguous prefix of received chunks
+        byte[][] chunkHashes;
+        MessageDigest streamDigest;
+        int streamedChunks;
+
+        FileMetadata(String fileId, String fileName, long totalSize, String sha256, String mode, int chunkSize) {
             this.fileId = fileId;
             this.fileName = fileName;
             this.totalSize = totalSize;
             this.expectedSha256 = sha256;
             this.mode = mode;
+            this.chunkSize = chunkSize;
             this.receivedChunks = ConcurrentHashMap.newKeySet();
             this.startTime = System.currentTimeMillis();
+            this.chunkHashes = new byte[expectedChunks()][];
+            this.streamDigest = newSha256();
+        }
+
+        int expectedChunks() {
+            return (int) ((totalSize + chunkSize - 1) / chunkSize);
+        }
+
+        // Small uploads live in memory only and are not journaled
+        boolean journaled() {
+            return !deduplicated && !inMemory;
         }
 
         boolean isComplete(int totalChunks) {
@@ -40,7 +112,22 @@ public class FileTransferManager {
     }
 
     public FileTransferManager() {
+        this(new TransferScheduler(GLOBAL_UPLOAD_RATE, USER_UPLOAD_RATE, TRANSFER_UPLOAD_RATE, MAX_CHUNK_SIZE));
+    }
+
+    FileTransferManager(TransferScheduler scheduler) {
+        this(scheduler, DEFAULT_SMALL_UPLOAD_LIMIT);
+    }
+
+    /**
+     * @param smallUploadLimit uploads up to this many bytes skip the temp file; 0 disables
+     */
+    FileTransferManager(TransferScheduler scheduler, int smallUploadLimit) {
+        this.scheduler = scheduler;
+        this.smallUploadLimit = smallUploadLimit;
+        this.smallUploads = new BufferPool(Math.max(smallUploadLimit, 1), SMALL_UPLOAD_MEMORY);
         initializeDirectories();
+        recoverTransfers();
         startCleanupTask();
     }
 
@@ -48,69 +135,211 @@ public class FileTransferManager {
         try {
             Files.createDirectories(Paths.get(TMP_DIR));
             Files.createDirectories(Paths.get(FILES_DIR));
+            Files.createDirectories(Paths.get(OBJECTS_DIR));
         } catch (IOException e) {
             System.err.println("Failed to create upload directories: " + e.getMessage());
         }
     }
 
     public String handleFileStart(String fileId, String fileName, long size, String sha256, String mode) {
+        return handleFileStart(fileId, fileName, size, sha256, mode, DEFAULT_CHUNK_SIZE);
+    }
+
+    public String handleFileStart(String fileId, String fileName, long size, String sha256, String mode, int chunkSize) {
+        return handleFileStart(fileId, fileName, size, sha256, mode, chunkSize, null);
+    }
+
+    /**
+     * @param merkleRoot optional hex root over the chunk SHA-256s, see {@link #merkleRoot}
+     */
+    public String handleFileStart(String fileId, String fileName, long size, String sha256, String mode,
+                                  int chunkSize, String merkleRoot) {
+        return handleFileStart(fileId, fileName, size, sha256, mode, chunkSize, merkleRoot, null);
+    }
+
+    /**
+     * @param owner user that started the transfer; only they may upload its bytes over HTTP,
+     *              and without one nobody may
+     */
+    public String handleFileStart(String fileId, String fileName, long size, String sha256, String mode,
+                                  int chunkSize, String merkleRoot, String owner) {
         if (size > MAX_FILE_SIZE) {
             return "File too large. Maximum size: " + (MAX_FILE_SIZE / 1024 / 1024) + "MB";
         }
 
+        if (size < 0) {
+            return "Invalid file size";
+        }
+
         if (fileName == null || fileName.trim().isEmpty()) {
             return "Invalid file name";
         }
 
+        // fileId becomes part of the temp file path
+        if (fileId == null || !fileId.matches("[A-Za-z0-9_-]{1,64}")) {
+            return "Invalid file id";
+        }
+
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+            return "Invalid chunk size. Maximum size: " + (MAX_CHUNK_SIZE / 1024) + "KB";
+        }
+
+        if (activeTransfers.containsKey(fileId)) {
+            return "File transfer already in progress for fileId: " + fileId;
+        }
+
         // Clean filename to prevent directory traversal
         String cleanFileName = Paths.get(fileName).getFileName().toString();
 
-        FileMetadata metadata = new FileMetadata(fileId, cleanFileName, size, sha256, mode);
-        activeTransfers.put(fileId, metadata);
+        FileMetadata metadata = new FileMetadata(fileId, cleanFileName, size, sha256, mode, chunkSize);
+        metadata.expectedMerkleRoot = merkleRoot;
+        metadata.owner = owner;
+
+        // Same content already stored: skip the chunk stream except for a few server-chosen
+        // chunks, knowing the hash alone must not be enough to get a link to the bytes
+        if (storedObject(metadata) != null) {
+            metadata.deduplicated = true;
+            metadata.proofChunks = pickProofChunks(metadata.expectedChunks());
+            activeTransfers.put(fileId, metadata);
+            System.out.println("[FileTransfer] Deduplicated: " + fileId + " (" + cleanFileName + ") -> "
+                + metadata.expectedSha256 + ", proof chunks " + metadata.proofChunks);
+            return null;
+        }
+
+        // Small upload: assembled in a pooled buffer, no temp file or journal
+        if (smallUploadLimit > 0 && size <= smallUploadLimit) {
+            metadata.memory = smallUploads.acquire((int) size);
+            if (metadata.memory != null) {
+                metadata.inMemory = true;
+                activeTransfers.put(fileId, metadata);
+                System.out.println("[FileTransfer] Started in memory: " + fileId + " (" + cleanFileName + ", " + size + " bytes)");
+                return null;
+            }
+            // Pool exhausted, take the temp file path
+        }
 
-        // Create temp directory for this file
+        // Chunks are written straight to their offset in one preallocated file
+        metadata.partFile = Paths.get(TMP_DIR, fileId + ".part");
+        try (RandomAccessFile raf = new RandomAccessFile(metadata.partFile.toFile(), "rw")) {
+            raf.setLength(size);
+        } catch (IOException e) {
+            return "Failed to create temp file: " + e.getMessage();
+        }
         try {
-            Files.createDirectories(Paths.get(TMP_DIR, fileId));
+            metadata.channel = FileChannel.open(metadata.partFile, StandardOpenOption.WRITE, StandardOpenOption.READ);
         } catch (IOException e) {
-            activeTransfers.remove(fileId);
-            return "Failed to create temp directory: " + e.getMessage();
+            deleteQuietly(metadata.partFile);
+            return "Failed to open temp file: " + e.getMessage();
         }
+        activeTransfers.put(fileId, metadata);
+        journal.append(startRecord(metadata));
 
         System.out.println("[FileTransfer] Started: " + fileId + " (" + cleanFileName + ", " + size + " bytes)");
         return null; // Success
     }
 
     public String handleFileChunk(String fileId, int chunkIndex, String ciphertext) {
+        return handleFileChunk(fileId, chunkIndex, ciphertext, null);
+    }
+
+    /**
+     * @param chunkSha256 optional hex SHA-256 of the decoded chunk; a mismatch rejects
+     *                    the chunk before it is written, so the sender can resend it
+     */
+    public String handleFileChunk(String fileId, int chunkIndex, String ciphertext, String chunkSha256) {
+        byte[] chunkData;
+        try {
+            // Decode base64 ciphertext
+            chunkData = Base64.getDecoder().decode(ciphertext);
+        } catch (IllegalArgumentException e) {
+            return "Invalid base64 data in chunk";
+        }
+        return handleChunkData(fileId, chunkIndex, ByteBuffer.wrap(chunkData), chunkSha256);
+    }
+
+    /**
+     * Shared by the WebSocket FILE_CHUNK path and the HTTP upload endpoint. The bytes
+     * between data's position and limit are the chunk; data itself is not modified.
+     */
+    public String handleChunkData(String fileId, int chunkIndex, ByteBuffer data, String chunkSha256) {
         FileMetadata metadata = activeTransfers.get(fileId);
         if (metadata == null) {
             return "File transfer not initialized for fileId: " + fileId;
         }
 
         try {
-            // Decode base64 ciphertext
-            byte[] chunkData = Base64.getDecoder().decode(ciphertext);
-
-            if (chunkData.length > MAX_CHUNK_SIZE) {
+            int chunkLength = data.remaining();
+            if (chunkLength > MAX_CHUNK_SIZE) {
                 return "Chunk too large. Maximum size: " + (MAX_CHUNK_SIZE / 1024) + "KB";
             }
 
+            if (chunkIndex < 0 || chunkIndex >= metadata.expectedChunks()) {
+                return "Chunk index out of range: " + chunkIndex;
+            }
+
+            // Older clients may stream all chunks anyway
+            if (metadata.deduplicated && !metadata.proofChunks.contains(chunkIndex)) {
+                return null;
+            }
+
+            // Every chunk but the last one must be exactly chunkSize long
+            long offset = (long) chunkIndex * metadata.chunkSize;
+            long expectedLength = Math.min(metadata.chunkSize, metadata.totalSize - offset);
+            if (chunkLength != expectedLength) {
+                return "Chunk " + chunkIndex + " has wrong length. Expected: " + expectedLength + ", Got: " + chunkLength;
+            }
+
             // Check if chunk already received (resume support)
             if (metadata.receivedChunks.contains(chunkIndex)) {
                 System.out.println("[FileTransfer] Chunk " + chunkIndex + " already received for " + fileId);
                 return null; // Already have this chunk, skip
             }
 
-            // Write chunk to temp file
-            Path chunkFile = Paths.get(TMP_DIR, fileId, "chunk-" + chunkIndex);
-            Files.write(chunkFile, chunkData);
+            MessageDigest chunkDigest = newSha256();
+            chunkDigest.update(data.duplicate());
+            byte[] chunkHash = chunkDigest.digest();
+            if (chunkSha256 != null && !chunkSha256.isEmpty() && !chunkSha256.equalsIgnoreCase(toHex(chunkHash))) {
+                return "Chunk " + chunkIndex + " failed integrity check";
+            }
+
+            // A proof chunk is only kept as its hash, FILE_END compares it with the stored content
+            if (metadata.deduplicated) {
+                synchronized (metadata) {
+                    metadata.chunkHashes[chunkIndex] = chunkHash;
+                    metadata.receivedChunks.add(chunkIndex);
+                }
+                return null;
+            }
 
-            metadata.receivedChunks.add(chunkIndex);
+            // Positional write, chunks may arrive in any order
+            if (metadata.memory != null) {
+                ByteBuffer target = metadata.memory.duplicate();
+                target.position((int) offset);
+                target.put(data.duplicate());
+            } else {
+                ByteBuffer buffer = data.duplicate();
+                long position = offset;
+                while (buffer.hasRemaining()) {
+                    position += metadata.channel.write(buffer, position);
+                }
+            }
+
+            synchronized (metadata) {
+                metadata.chunkHashes[chunkIndex] = chunkHash;
+                metadata.receivedChunks.add(chunkIndex);
+                advanceStreamDigest(metadata, chunkIndex, data);
+            }
+            if (metadata.journaled()) {
+                journal.append(new JSONObject()
+                    .put("op", "chunk")
+                    .put("file_id", fileId)
+                    .put("index", chunkIndex)
+                    .put("sha256", toHex(chunkHash)));
+            }
             System.out.println("[FileTransfer] Chunk " + chunkIndex + " received for " + fileId +
                 " (" + metadata.receivedChunks.size() + " chunks total)");
 
             return null; // Success
-        } catch (IllegalArgumentException e) {
-            return "Invalid base64 data in chunk";
         } catch (IOException e) {
             return "Failed to write chunk: " + e.getMessage();
         }
@@ -122,123 +351,620 @@ public class FileTransferManager {
             return "File transfer not found for fileId: " + fileId;
         }
 
+        if (metadata.deduplicated) {
+            return finishDeduplicated(metadata);
+        }
+
         try {
-            // Check if we have a continuous sequence of chunks starting from 0
+            // Every chunk covering [0, totalSize) must be present; the size is fixed by preallocation
             int receivedCount = metadata.receivedChunks.size();
-            boolean hasSequentialChunks = true;
-            for (int i = 0; i < receivedCount; i++) {
-                if (!metadata.receivedChunks.contains(i)) {
-                    hasSequentialChunks = false;
-                    break;
-                }
+            int expectedCount = metadata.expectedChunks();
+            if (receivedCount != expectedCount) {
+                return "Missing chunks. Received: " + receivedCount + " of " + expectedCount + " chunks";
             }
 
-            if (!hasSequentialChunks) {
-                return "Missing chunks in sequence. Received: " + receivedCount + " chunks but sequence is incomplete";
+            if (metadata.channel != null) {
+                metadata.channel.close();
+            }
+
+            // Both digests were built while the chunks arrived, nothing is re-read here
+            String integrityError = null;
+            String actualSha256;
+            synchronized (metadata) {
+                actualSha256 = toHex(metadata.streamDigest.digest());
+                if (metadata.expectedMerkleRoot != null && !metadata.expectedMerkleRoot.isEmpty()
+                        && !metadata.expectedMerkleRoot.equalsIgnoreCase(toHex(merkleRoot(metadata.chunkHashes)))) {
+                    integrityError = "Merkle root mismatch";
+                } else if (metadata.expectedSha256 != null && !metadata.expectedSha256.isEmpty()
+                        && !metadata.expectedSha256.equalsIgnoreCase(actualSha256)) {
+                    integrityError = "SHA256 checksum mismatch";
+                }
+            }
+            if (integrityError != null) {
+                cleanupTransfer(metadata);
+                endTransfer(metadata);
+                return integrityError;
             }
 
-            // Merge chunks into final file
+            // The rename replaces the old merge step; the part file becomes the stored object.
+            // Link first: once linked the object GC leaves it alone, checking for it first would race the GC
+            Path object = Paths.get(OBJECTS_DIR, actualSha256);
             Path finalFile = Paths.get(FILES_DIR, fileId + "-" + metadata.fileName);
-            try (FileOutputStream fos = new FileOutputStream(finalFile.toFile())) {
-                for (int i = 0; i < receivedCount; i++) {
-                    Path chunkFile = Paths.get(TMP_DIR, fileId, "chunk-" + i);
-                    if (!Files.exists(chunkFile)) {
-                        throw new IOException("Missing chunk file: " + i);
+            try {
+                linkObject(object, finalFile);
+                deleteQuietly(metadata.partFile); // identical upload finished first
+            } catch (NoSuchFileException e) {
+                if (metadata.memory != null) {
+                    writeObject(object, metadata.memory);
+                } else {
+                    try {
+                        Files.move(metadata.partFile, object, StandardCopyOption.ATOMIC_MOVE);
+                    } catch (AtomicMoveNotSupportedException e2) {
+                        Files.move(metadata.partFile, object, StandardCopyOption.REPLACE_EXISTING);
                     }
+                }
+                linkObject(object, finalFile);
+            }
+            addToCatalog(metadata, actualSha256);
+            cleanupTransfer(metadata);
+            endTransfer(metadata);
+
+            System.out.println("[FileTransfer] Completed: " + fileId + " -> " + finalFile);
+            return null; // Success
+
+        } catch (IOException e) {
+            // The temp file is closed by now, the transfer cannot be resumed
+            cleanupTransfer(metadata);
+            endTransfer(metadata);
+            return "Failed to finalize file: " + e.getMessage();
+        }
+    }
+
+    private void addToCatalog(FileMetadata metadata, String sha256) {
+        Path finalFile = Paths.get(FILES_DIR, metadata.fileId + "-" + metadata.fileName);
+        Path gzipped = Paths.get(FILES_DIR, metadata.fileId + "-" + metadata.fileName + ".gz");
+        try {
+            // Deduplicated against content FileCompressor had already stored gzipped
+            boolean linkedGzip = !Files.exists(finalFile) && Files.exists(gzipped);
+            FileCatalog.Entry entry = new FileCatalog.Entry(metadata.fileId, metadata.fileName, metadata.totalSize,
+                FileCatalog.mimeTypeOf(metadata.fileName), sha256,
+                Files.getLastModifiedTime(linkedGzip ? gzipped : finalFile).toMillis());
+            if (linkedGzip) {
+                entry = entry.withGzip(Files.size(gzipped));
+            }
+            catalog.add(entry);
+            thumbnails.submit(entry);
+            compressor.submit(entry);
+        } catch (IOException e) {
+            // Still downloadable, FileServer falls back to the file itself
+            System.err.println("Failed to catalog " + metadata.fileId + ": " + e.getMessage());
+        }
+    }
+
+    // One write of the whole buffer; renamed into place so a crash never leaves a short object
+    private void writeObject(Path object, ByteBuffer content) throws IOException {
+        Path tmp = Paths.get(TMP_DIR, object.getFileName() + ".obj");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = content.duplicate();
+            buffer.position(0);
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+        }
+        try {
+            Files.move(tmp, object, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, object, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            deleteQuietly(tmp);
+        }
+    }
+
+    /**
+     * The stored object with the content the client claims, or null if there is none
+     */
+    private Path storedObject(FileMetadata metadata) {
+        String sha256 = metadata.expectedSha256;
+        if (sha256 == null || !sha256.matches("[0-9a-fA-F]{64}")) {
+            return null;
+        }
+        Path object = Paths.get(OBJECTS_DIR, sha256.toLowerCase());
+        Path gzipped = Paths.get(OBJECTS_DIR, sha256.toLowerCase() + ".gz");
+        try {
+            // The gzipped copy first, the plain object may only be waiting for the object GC
+            if (Files.isRegularFile(gzipped) && FileCompressor.inflatesTo(gzipped, metadata.totalSize)) {
+                return gzipped;
+            }
+            if (Files.isRegularFile(object) && Files.size(object) == metadata.totalSize) {
+                return object;
+            }
+            return null;
+        } catch (IOException e) {
+            return null; // e.g. collected in the meantime, fall back to a normal upload
+        }
+    }
+
+    private static Set<Integer> pickProofChunks(int chunkCount) {
+        Set<Integer> picked = new TreeSet<>();
+        while (picked.size() < Math.min(PROOF_CHUNKS, chunkCount)) {
+            picked.add(PROOF_RANDOM.nextInt(chunkCount));
+        }
+        return picked;
+    }
+
+    /**
+     * FILE_END of a deduplicated transfer: link the stored object once the proof chunks
+     * match it. A missing proof chunk can still be sent, a mismatch ends the transfer.
+     */
+    private String finishDeduplicated(FileMetadata metadata) {
+        for (int index : metadata.proofChunks) {
+            if (!metadata.receivedChunks.contains(index)) {
+                return "Missing proof chunk " + index + " for stored content";
+            }
+        }
+        Path object = storedObject(metadata);
+        try {
+            if (object == null) {
+                throw new NoSuchFileException(metadata.expectedSha256);
+            }
+            boolean gzipped = object.getFileName().toString().endsWith(".gz");
+            if (!matchesProof(metadata, object, gzipped)) {
+                endTransfer(metadata);
+                System.err.println("[FileTransfer] Proof chunks do not match stored content: " + metadata.fileId);
+                return "SHA256 checksum mismatch";
+            }
+            linkObject(object, Paths.get(FILES_DIR, metadata.fileId + "-" + metadata.fileName + (gzipped ? ".gz" : "")));
+        } catch (IOException e) {
+            // e.g. collected since FILE_START
+            endTransfer(metadata);
+            return "Stored content is no longer available, upload the file again";
+        }
+        addToCatalog(metadata, metadata.expectedSha256.toLowerCase());
+        endTransfer(metadata);
+        System.out.println("[FileTransfer] Completed (deduplicated): " + metadata.fileId);
+        return null;
+    }
 
-                    byte[] chunkData = Files.readAllBytes(chunkFile);
-                    fos.write(chunkData);
+    // Read through the stored content once, comparing each proof chunk with its range
+    private boolean matchesProof(FileMetadata metadata, Path object, boolean gzipped) throws IOException {
+        try (InputStream in = gzipped
+                 ? new GZIPInputStream(new BufferedInputStream(Files.newInputStream(object)), 64 * 1024)
+                 : Files.newInputStream(object)) {
+            DataInputStream data = new DataInputStream(in);
+            byte[] chunk = new byte[metadata.chunkSize];
+            long position = 0;
+            for (int index : new TreeSet<>(metadata.proofChunks)) {
+                long offset = (long) index * metadata.chunkSize;
+                for (long skip = offset - position; skip > 0; ) {
+                    long skipped = data.skip(skip);
+                    if (skipped <= 0) {
+                        if (data.read() < 0) throw new EOFException();
+                        skipped = 1;
+                    }
+                    skip -= skipped;
+                }
+                int length = (int) Math.min(metadata.chunkSize, metadata.totalSize - offset);
+                data.readFully(chunk, 0, length);
+                position = offset + length;
+                MessageDigest digest = newSha256();
+                digest.update(chunk, 0, length);
+                if (!MessageDigest.isEqual(digest.digest(), metadata.chunkHashes[index])) {
+                    return false;
                 }
             }
+            return true;
+        }
+    }
 
-            // Verify file size
-            long finalSize = Files.size(finalFile);
-            if (finalSize != metadata.totalSize) {
-                Files.deleteIfExists(finalFile);
-                return "File size mismatch. Expected: " + metadata.totalSize + ", Got: " + finalSize;
+    /**
+     * files/ entries are hardlinks, so the object's link count is its reference count.
+     * Linked under a temp name and renamed into place, so an existing entry (a retried
+     * FILE_END, a replayed journal record) is replaced instead of failing the upload.
+     *
+     * @throws NoSuchFileException if the object does not exist (e.g. just collected)
+     */
+    private void linkObject(Path object, Path link) throws IOException {
+        Path tmp = Paths.get(TMP_DIR, UUID.randomUUID() + ".link");
+        try {
+            try {
+                Files.createLink(tmp, object);
+            } catch (UnsupportedOperationException e) {
+                Files.copy(object, tmp);
+            }
+            try {
+                Files.move(tmp, link, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, link, StandardCopyOption.REPLACE_EXISTING);
             }
+        } finally {
+            // rename(2) onto a link to the same object succeeds without removing tmp
+            deleteQuietly(tmp);
+        }
+    }
 
-            // Optional: Verify SHA256 if provided
-            if (metadata.expectedSha256 != null && !metadata.expectedSha256.isEmpty()) {
-                String actualSha256 = calculateSha256(finalFile);
-                if (!metadata.expectedSha256.equalsIgnoreCase(actualSha256)) {
-                    Files.deleteIfExists(finalFile);
-                    return "SHA256 checksum mismatch";
+    /**
+     * Delete stored objects no file links to any more (link count 1). Objects younger
+     * than OBJECT_GC_MIN_AGE_MS are kept, a finishing upload may be about to link them.
+     */
+    private void collectUnreferencedObjects() {
+        long cutoff = System.currentTimeMillis() - OBJECT_GC_MIN_AGE_MS;
+        try (DirectoryStream<Path> objects = Files.newDirectoryStream(Paths.get(OBJECTS_DIR))) {
+            for (Path object : objects) {
+                int links = (Integer) Files.getAttribute(object, "unix:nlink");
+                if (links <= 1 && Files.getLastModifiedTime(object).toMillis() < cutoff) {
+                    System.out.println("[FileTransfer] Removing unreferenced object: " + object.getFileName());
+                    Files.deleteIfExists(object);
                 }
             }
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            // No link counts on this filesystem, objects are never collected
+        } catch (IOException e) {
+            System.err.println("Failed to collect stored objects: " + e.getMessage());
+        }
+    }
 
-            // Clean up temp directory
-            cleanupTempDir(fileId);
-            activeTransfers.remove(fileId);
+    public boolean isDeduplicated(String fileId) {
+        FileMetadata metadata = activeTransfers.get(fileId);
+        return metadata != null && metadata.deduplicated;
+    }
 
-            System.out.println("[FileTransfer] Completed: " + fileId + " -> " + finalFile);
-            return null; // Success
+    /**
+     * Chunk indices a deduplicated transfer still has to send, empty otherwise
+     */
+    public List<Integer> getProofChunks(String fileId) {
+        FileMetadata metadata = activeTransfers.get(fileId);
+        return metadata == null ? Collections.emptyList() : new ArrayList<>(metadata.proofChunks);
+    }
+
+    /**
+     * Feed the streaming digest. Chunks arriving in order go straight in; a chunk that
+     * arrives early waits on disk and is read back once the gap before it is filled.
+     */
+    private void advanceStreamDigest(FileMetadata metadata, int chunkIndex, ByteBuffer chunkData) throws IOException {
+        if (chunkIndex != metadata.streamedChunks) {
+            return;
+        }
+        metadata.streamDigest.update(chunkData.duplicate());
+        metadata.streamedChunks++;
+        catchUpStreamDigest(metadata);
+    }
+
+    private void catchUpStreamDigest(FileMetadata metadata) throws IOException {
+        ByteBuffer readBack = null;
+        while (metadata.receivedChunks.contains(metadata.streamedChunks)) {
+            if (readBack == null) {
+                readBack = ByteBuffer.allocate(metadata.chunkSize);
+            }
+            readChunk(metadata, metadata.streamedChunks, readBack);
+            metadata.streamDigest.update(readBack);
+            metadata.streamedChunks++;
+        }
+    }
 
+    // Leaves the chunk between position 0 and limit of buffer
+    private void readChunk(FileMetadata metadata, int chunkIndex, ByteBuffer buffer) throws IOException {
+        long offset = (long) chunkIndex * metadata.chunkSize;
+        int length = (int) Math.min(metadata.chunkSize, metadata.totalSize - offset);
+        buffer.clear().limit(length);
+        if (metadata.memory != null) {
+            ByteBuffer source = metadata.memory.duplicate();
+            source.limit((int) offset + length).position((int) offset);
+            buffer.put(source).flip();
+            return;
+        }
+        while (buffer.hasRemaining()) {
+            if (metadata.channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of temp file at chunk " + chunkIndex);
+            }
+        }
+        buffer.flip();
+    }
+
+    private void endTransfer(FileMetadata metadata) {
+        activeTransfers.remove(metadata.fileId);
+        scheduler.finish(metadata.fileId);
+        if (metadata.journaled()) {
+            journal.append(endRecord(metadata.fileId));
+        }
+    }
+
+    private static JSONObject startRecord(FileMetadata metadata) {
+        return new JSONObject()
+            .put("op", "start")
+            .put("file_id", metadata.fileId)
+            .put("name", metadata.fileName)
+            .put("size", metadata.totalSize)
+            .put("sha256", metadata.expectedSha256 == null ? "" : metadata.expectedSha256)
+            .put("merkle_root", metadata.expectedMerkleRoot == null ? "" : metadata.expectedMerkleRoot)
+            .put("mode", metadata.mode == null ? "" : metadata.mode)
+            .put("chunk_size", metadata.chunkSize)
+            .put("owner", metadata.owner == null ? "" : metadata.owner);
+    }
+
+    private static JSONObject endRecord(String fileId) {
+        return new JSONObject().put("op", "end").put("file_id", fileId);
+    }
+
+    /**
+     * Replay the journal: every transfer started but not ended is reopened, and each
+     * journaled chunk is re-hashed from the part file before it counts as received
+     */
+    private void recoverTransfers() {
+        Map<String, JSONObject> started = new LinkedHashMap<>();
+        Map<String, Map<Integer, String>> chunks = new HashMap<>();
+        for (JSONObject record : journal.readAll()) {
+            String fileId = record.optString("file_id");
+            switch (record.optString("op")) {
+                case "start":
+                    started.put(fileId, record);
+                    chunks.put(fileId, new TreeMap<>());
+                    break;
+                case "chunk":
+                    Map<Integer, String> hashes = chunks.get(fileId);
+                    if (hashes != null) {
+                        hashes.put(record.getInt("index"), record.getString("sha256"));
+                    }
+                    break;
+                case "end":
+                    started.remove(fileId);
+                    chunks.remove(fileId);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        for (JSONObject record : started.values()) {
+            recoverTransfer(record, chunks.get(record.getString("file_id")));
+        }
+
+        // Part files the journal does not account for can never be completed
+        try (DirectoryStream<Path> parts = Files.newDirectoryStream(Paths.get(TMP_DIR), "*.part")) {
+            for (Path part : parts) {
+                String fileId = part.getFileName().toString().replace(".part", "");
+                if (!activeTransfers.containsKey(fileId)) {
+                    deleteQuietly(part);
+                }
+            }
         } catch (IOException e) {
-            return "Failed to finalize file: " + e.getMessage();
+            System.err.println("Failed to scan temp dir: " + e.getMessage());
         }
+
+        compactJournal();
     }
 
-    private String calculateSha256(Path file) throws IOException {
+    private void recoverTransfer(JSONObject record, Map<Integer, String> chunkHashes) {
+        String fileId = record.getString("file_id");
+        FileMetadata metadata = new FileMetadata(fileId, record.getString("name"), record.getLong("size"),
+            record.optString("sha256"), record.optString("mode"), record.getInt("chunk_size"));
+        metadata.expectedMerkleRoot = record.optString("merkle_root");
+        metadata.owner = record.optString("owner").isEmpty() ? null : record.optString("owner");
+        metadata.partFile = Paths.get(TMP_DIR, fileId + ".part");
+
         try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] buffer = new byte[8192];
+            if (!Files.isRegularFile(metadata.partFile) || Files.size(metadata.partFile) != metadata.totalSize) {
+                deleteQuietly(metadata.partFile);
+                return;
+            }
+            metadata.channel = FileChannel.open(metadata.partFile, StandardOpenOption.WRITE, StandardOpenOption.READ);
+
+            ByteBuffer buffer = ByteBuffer.allocate(metadata.chunkSize);
+            for (Map.Entry<Integer, String> chunk : chunkHashes.entrySet()) {
+                int index = chunk.getKey();
+                if (index < 0 || index >= metadata.expectedChunks()) continue;
+                readChunk(metadata, index, buffer);
+                MessageDigest digest = newSha256();
+                digest.update(buffer);
+                byte[] hash = digest.digest();
+                if (toHex(hash).equalsIgnoreCase(chunk.getValue())) {
+                    metadata.chunkHashes[index] = hash;
+                    metadata.receivedChunks.add(index);
+                }
+            }
+            catchUpStreamDigest(metadata);
+        } catch (IOException e) {
+            System.err.println("Failed to recover transfer " + fileId + ": " + e.getMessage());
+            cleanupTransfer(metadata);
+            return;
+        }
+
+        activeTransfers.put(fileId, metadata);
+        System.out.println("[FileTransfer] Recovered: " + fileId + " (" + metadata.receivedChunks.size()
+            + "/" + metadata.expectedChunks() + " chunks)");
+    }
 
-            try (InputStream fis = Files.newInputStream(file)) {
-                int bytesRead;
-                while ((bytesRead = fis.read(buffer)) != -1) {
-                    digest.update(buffer, 0, bytesRead);
+    private void compactJournal() {
+        journal.compact(() -> {
+            List<JSONObject> records = new ArrayList<>();
+            for (FileMetadata metadata : activeTransfers.values()) {
+                if (!metadata.journaled()) continue;
+                records.add(startRecord(metadata));
+                synchronized (metadata) {
+                    for (int i = 0; i < metadata.chunkHashes.length; i++) {
+                        if (metadata.chunkHashes[i] != null) {
+                            records.add(new JSONObject()
+                                .put("op", "chunk")
+                                .put("file_id", metadata.fileId)
+                                .put("index", i)
+                                .put("sha256", toHex(metadata.chunkHashes[i])));
+                        }
+                    }
                 }
             }
+            return records;
+        });
+    }
 
-            byte[] hash = digest.digest();
-            StringBuilder hexString = new StringBuilder();
-            for (byte b : hash) {
-                String hex = Integer.toHexString(0xff & b);
-                if (hex.length() == 1) {
-                    hexString.append('0');
+    /**
+     * Received chunk indices for a resuming client, or null if the transfer is unknown
+     */
+    public BitSet getReceivedChunks(String fileId) {
+        FileMetadata metadata = activeTransfers.get(fileId);
+        if (metadata == null) {
+            return null;
+        }
+        BitSet received = new BitSet(metadata.expectedChunks());
+        if (metadata.deduplicated) {
+            received.set(0, metadata.expectedChunks());
+            for (int index : metadata.proofChunks) {
+                received.set(index, metadata.receivedChunks.contains(index));
+            }
+        } else {
+            for (int index : metadata.receivedChunks) {
+                received.set(index);
+            }
+        }
+        return received;
+    }
+
+    /**
+     * Binary Merkle tree over the chunk hashes: parent = SHA-256(left || right), an odd
+     * node at the end of a level is carried up unchanged. An empty file hashes to SHA-256("").
+     */
+    static byte[] merkleRoot(byte[][] leaves) {
+        if (leaves.length == 0) {
+            return newSha256().digest();
+        }
+        byte[][] level = leaves;
+        while (level.length > 1) {
+            byte[][] parents = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < parents.length; i++) {
+                if (2 * i + 1 < level.length) {
+                    MessageDigest digest = newSha256();
+                    digest.update(level[2 * i]);
+                    digest.update(level[2 * i + 1]);
+                    parents[i] = digest.digest();
+                } else {
+                    parents[i] = level[2 * i];
                 }
-                hexString.append(hex);
             }
-            return hexString.toString();
-        } catch (Exception e) {
-            throw new IOException("Failed to calculate SHA256: " + e.getMessage());
+            level = parents;
+        }
+        return level[0];
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private static String toHex(byte[] hash) {
+        StringBuilder hexString = new StringBuilder();
+        for (byte b : hash) {
+            String hex = Integer.toHexString(0xff & b);
+            if (hex.length() == 1) {
+                hexString.append('0');
+            }
+            hexString.append(hex);
         }
+        return hexString.toString();
     }
 
-    private void cleanupTempDir(String fileId) {
+    private void cleanupTransfer(FileMetadata metadata) {
         try {
-            Path tempDir = Paths.get(TMP_DIR, fileId);
-            if (Files.exists(tempDir)) {
-                Files.walk(tempDir)
-                    .sorted(Comparator.reverseOrder())
-                    .map(Path::toFile)
-                    .forEach(File::delete);
+            if (metadata.channel != null) {
+                metadata.channel.close();
             }
         } catch (IOException e) {
-            System.err.println("Failed to cleanup temp dir for " + fileId + ": " + e.getMessage());
+            System.err.println("Failed to close temp file for " + metadata.fileId + ": " + e.getMessage());
+        }
+        deleteQuietly(metadata.partFile);
+        synchronized (metadata) {
+            if (metadata.memory != null) {
+                smallUploads.release(metadata.memory);
+                metadata.memory = null;
+            }
+        }
+    }
+
+    private void deleteQuietly(Path path) {
+        try {
+            if (path != null) {
+                Files.deleteIfExists(path);
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to delete " + path + ": " + e.getMessage());
         }
     }
 
     private void startCleanupTask() {
+        // An exception escaping the task would cancel every later run, so catch it here
+        cleanupExecutor.scheduleAtFixedRate(() -> {
+            try {
+                runCleanup();
+            } catch (Throwable t) {
+                System.err.println("[FileTransfer] Cleanup run failed: " + t);
+            }
+        }, 5, 5, TimeUnit.MINUTES);
+    }
+
+    private void runCleanup() {
         // Simple cleanup: remove transfers older than 1 hour
-        Timer timer = new Timer("FileTransferCleanup", true);
-        timer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                long cutoff = System.currentTimeMillis() - (60 * 60 * 1000); // 1 hour
-
-                Iterator<Map.Entry<String, FileMetadata>> iter = activeTransfers.entrySet().iterator();
-                while (iter.hasNext()) {
-                    Map.Entry<String, FileMetadata> entry = iter.next();
-                    if (entry.getValue().startTime < cutoff) {
-                        System.out.println("[FileTransfer] Cleaning up stale transfer: " + entry.getKey());
-                        cleanupTempDir(entry.getKey());
-                        iter.remove();
+        long cutoff = System.currentTimeMillis() - (60 * 60 * 1000); // 1 hour
+
+        for (Map.Entry<String, FileMetadata> entry : activeTransfers.entrySet()) {
+            if (entry.getValue().startTime < cutoff) {
+                String fileId = entry.getKey();
+                // Through the transfer's writer lane, so no chunk write races the close
+                submit(fileId, () -> {
+                    FileMetadata metadata = activeTransfers.get(fileId);
+                    if (metadata == null || metadata.startTime >= cutoff) {
+                        return null;
                     }
-                }
+                    System.out.println("[FileTransfer] Cleaning up stale transfer: " + fileId);
+                    cleanupTransfer(metadata);
+                    activeTransfers.remove(fileId);
+                    scheduler.finish(fileId);
+                    if (metadata.journaled()) {
+                        journal.append(endRecord(fileId));
+                    }
+                    return null;
+                });
             }
-        }, 300000, 300000); // Run every 5 minutes
+        }
+
+        compactJournal();
+
+        collectUnreferencedObjects();
+    }
+
+    /**
+     * Run a file operation (one of the handle* methods) on the disk writer stage
+     * instead of the caller's thread. Operations for the same fileId run in the order
+     * they were submitted. The future completes with the operation's result: null on
+     * success, otherwise an error message, which is also what a full queue yields.
+     */
+    public CompletableFuture<String> submit(String fileId, Supplier<String> operation) {
+        return diskWriter.submit(fileId, operation);
+    }
+
+    /**
+     * Wait for upload bandwidth before writing a chunk of this transfer. Chunks queue per
+     * transfer, in order; pass 0 bytes for FILE_END so it runs after the chunks ahead of it.
+     * @return future completing with null once admitted, otherwise an error message
+     */
+    public CompletableFuture<String> admit(String owner, String fileId, int bytes) {
+        return scheduler.admit(owner, fileId, bytes);
+    }
+
+    public int getWriteQueueDepth() {
+        return diskWriter.queueDepth();
+    }
+
+    public void shutdown() {
+        cleanupExecutor.shutdownNow();
+        scheduler.shutdown();
+        diskWriter.shutdown();
+        thumbnails.shutdown();
+        compressor.shutdown();
+    }
+
+    FileCatalog getCatalog() {
+        return catalog;
     }
 
     public Set<String> getActiveTransfers() {
@@ -0,0 +1,237 @@
+package devserver;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * HttpServer hosting shared by FileServer and AuthServer.
+ *
+ * With setExecutor(null) the JDK server runs every handler on its one dispatcher
+ * thread, so a single slow download or PBKDF2 login holds up the whole port. Here the
+ * server's own executor only reads request headers, and each endpoint class (downloads,
+ * uploads, logins, ...) gets its own bounded pool. A full pool answers 503
+ * instead of queueing behind the others. Pool threads are virtual threads on JDKs
+ * that have them.
+ *
+ * Keep-alive and connection limits are the sun.net.httpserver / jdk.httpserver system
+ * properties, set here unless given on the command line. GET /metrics returns request
+ * counts and latency percentiles per endpoint.
+ */
+class HttpHost {
+    private static final int BACKLOG = 256;
+    private static final int HEADER_THREADS = 16;
+
+    static {
+        // ServerConfig reads these once, before the first HttpServer is created
+        defaultProperty("sun.net.httpserver.idleInterval", "30");        // s an idle keep-alive connection stays open
+        defaultProperty("sun.net.httpserver.maxIdleConnections", "256");
+        defaultProperty("sun.net.httpserver.maxReqTime", "60");          // s to receive a request, drops stalled clients
+        defaultProperty("sun.net.httpserver.nodelay", "true");
+        defaultProperty("jdk.httpserver.maxConnections", "1024");        // only honoured by newer JDKs
+    }
+
+    private static final ThreadFactory VIRTUAL = virtualThreadFactory();
+
+    private final String tag;
+    private final HttpServer server;
+    private final Map<String, Endpoint> endpoints = new LinkedHashMap<>();
+    private final Map<String, Supplier<JSONObject>> extraMetrics = new LinkedHashMap<>();
+
+    /**
+     * @param tag log prefix, e.g. "HTTP" or "AUTH"
+     */
+    HttpHost(String tag, int port) throws IOException {
+        this.tag = tag;
+        this.server = HttpServer.create(new InetSocketAddress(port), BACKLOG);
+        server.setExecutor(headerExecutor(tag));
+        server.createContext("/metrics", this::sendMetrics);
+    }
+
+    /**
+     * Serve path on the endpoint's own pool.
+     *
+     * @param endpoint name in /metrics; contexts with the same name share the pool
+     * @param threads  requests handled at once
+     * @param queued   requests allowed to wait, further ones get 503
+     */
+    synchronized void context(String path, String endpoint, int threads, int queued, HttpHandler handler) {
+        Endpoint target = endpoints.computeIfAbsent(endpoint, name -> new Endpoint(tag, name, threads, queued));
+        server.createContext(path, exchange -> target.dispatch(exchange, handler));
+    }
+
+    /**
+     * Add a section to /metrics, for work the handlers hand off elsewhere
+     */
+    synchronized void metrics(String name, Supplier<JSONObject> section) {
+        extraMetrics.put(name, section);
+    }
+
+    void start() {
+        server.start();
+        System.out.println("[" + tag + "] Handler pools: " + describe()
+            + (VIRTUAL != null ? " (virtual threads)" : ""));
+    }
+
+    void stop() {
+        server.stop(0);
+        synchronized (this) {
+            for (Endpoint endpoint : endpoints.values()) {
+                endpoint.pool.shutdownNow();
+            }
+        }
+    }
+
+    private synchronized String describe() {
+        StringBuilder sb = new StringBuilder();
+        for (Endpoint endpoint : endpoints.values()) {
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(endpoint.name).append('=').append(endpoint.pool.getMaximumPoolSize());
+        }
+        return sb.toString();
+    }
+
+    private void sendMetrics(HttpExchange exchange) throws IOException {
+        JSONObject json = new JSONObject();
+        synchronized (this) {
+            for (Endpoint endpoint : endpoints.values()) {
+                json.put(endpoint.name, endpoint.toJson());
+            }
+            for (Map.Entry<String, Supplier<JSONObject>> section : extraMetrics.entrySet()) {
+                json.put(section.getKey(), section.getValue().get());
+            }
+        }
+        byte[] bytes = json.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    private static class Endpoint {
+        final String tag;
+        final String name;
+        final ThreadPoolExecutor pool;
+        final LongAdder requests = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        Endpoint(String tag, String name, int threads, int queued) {
+            this.tag = tag;
+            this.name = name;
+            this.pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queued)), threadFactory(tag.toLowerCase() + "-" + name),
+                new ThreadPoolExecutor.AbortPolicy());
+            pool.allowCoreThreadTimeOut(true);
+        }
+
+        void dispatch(HttpExchange exchange, HttpHandler handler) throws IOException {
+            long queuedAt = System.nanoTime();
+            try {
+                pool.execute(() -> handle(exchange, handler, queuedAt));
+            } catch (RejectedExecutionException e) {
+                rejected.increment();
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                exchange.sendResponseHeaders(503, -1);
+                exchange.close();
+            }
+        }
+
+        private void handle(HttpExchange exchange, HttpHandler handler, long queuedAt) {
+            try {
+                handler.handle(exchange);
+            } catch (Exception e) {
+                // The handlers answer their own errors, anything left is a broken connection
+                System.err.println("[" + tag + "] " + name + " handler failed: " + e.getMessage());
+                exchange.close();
+            } finally {
+                // Time in the queue counts: that is what the client waited for
+                record(System.nanoTime() - queuedAt, exchange.getResponseCode());
+            }
+        }
+
+        private void record(long nanos, int status) {
+            requests.increment();
+            if (status < 0 || status >= 500) errors.increment();
+            latency.record(nanos);
+        }
+
+        JSONObject toJson() {
+            JSONObject json = new JSONObject()
+                .put("requests", requests.sum())
+                .put("errors", errors.sum())
+                .put("rejected", rejected.sum())
+                .put("active", pool.getActiveCount())
+                .put("queued", pool.getQueue().size());
+            JSONObject percentiles = latency.toJson();
+            for (String key : new String[] {"p50_ms", "p99_ms", "max_ms"}) {
+                json.put(key, percentiles.get(key));
+            }
+            return json;
+        }
+    }
+
+    /**
+     * Reads request headers and hands the exchange to its endpoint pool. Slow clients
+     * can hold a platform thread here until maxReqTime closes them.
+     */
+    private static Executor headerExecutor(String tag) {
+        ThreadFactory factory = threadFactory(tag.toLowerCase() + "-accept");
+        if (VIRTUAL != null) {
+            return task -> factory.newThread(task).start();
+        }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(HEADER_THREADS, HEADER_THREADS, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), factory);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static ThreadFactory threadFactory(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = VIRTUAL != null ? VIRTUAL.newThread(r) : new Thread(r);
+            t.setName(prefix + "-" + count.incrementAndGet());
+            if (!t.isDaemon()) t.setDaemon(true);
+            return t;
+        };
+    }
+
+    // Thread.ofVirtual().factory() on JDK 21+, looked up reflectively since we build for 11
+    private static ThreadFactory virtualThreadFactory() {
+        if (Boolean.getBoolean("devserver.http.platformThreads")) {
+            return null;
+        }
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static void defaultProperty(String key, String value) {
+        if (System.getProperty(key) == null) {
+            System.setProperty(key, value);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package devserver;
 
 import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwtParser;
 import io.jsonwebtoken.Jwts;
 import io.jsonwebtoken.SignatureAlgorithm;
 import io.jsonwebtoken.security.Keys;
@@ -12,11 +13,34 @@ import java.security.MessageDigest;
 import java.util.Base64;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 public class JwtService {
     private static final SecretKey SECRET_KEY = loadSecretKey();
     private static final long EXPIRATION_TIME = 86400000;
+    // Built once, the parser is immutable and thread-safe
+    private static final JwtParser PARSER = Jwts.parserBuilder().setSigningKey(SECRET_KEY).build();
+
+    // Verified tokens by SHA-256, until their exp: reconnects skip the signature check.
+    // Only valid tokens are cached, so made-up ones cannot evict them faster than by expiry
+    private static final int MAX_CACHED_TOKENS = 10000;
+    private static final Map<String, Verified> VERIFIED = new LinkedHashMap<String, Verified>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Verified> eldest) {
+            return size() > MAX_CACHED_TOKENS;
+        }
+    };
+
+    private static class Verified {
+        final String username;
+        final long expiresAtMs;
+
+        Verified(String username, long expiresAtMs) {
+            this.username = username;
+            this.expiresAtMs = expiresAtMs;
+        }
+    }
 
     private static SecretKey loadSecretKey() {
         String secretString = System.getenv("JWT_SECRET");
@@ -45,31 +69,55 @@ public class JwtService {
                 .compact();
     }
 
+    /**
+     * @return the username of a valid, unexpired token, otherwise null
+     */
     public static String validateToken(String token) {
-        try {
-            Claims claims = Jwts.parserBuilder()
-                    .setSigningKey(SECRET_KEY)
-                    .build()
-                    .parseClaimsJws(token)
-                    .getBody();
+        Verified verified = verify(token);
+        return verified != null ? verified.username : null;
+    }
 
-            return claims.getSubject();
+    public static boolean isTokenExpired(String token) {
+        return verify(token) == null;
+    }
+
+    private static Verified verify(String token) {
+        if (token == null || token.isEmpty()) {
+            return null;
+        }
+        String key = digest(token);
+        long now = System.currentTimeMillis();
+        synchronized (VERIFIED) {
+            Verified cached = VERIFIED.get(key);
+            if (cached != null) {
+                if (cached.expiresAtMs > now) return cached;
+                VERIFIED.remove(key);
+                return null;
+            }
+        }
+        try {
+            // Also rejects expired tokens
+            Claims claims = PARSER.parseClaimsJws(token).getBody();
+            Date expiration = claims.getExpiration();
+            if (claims.getSubject() == null || expiration == null) {
+                return null;
+            }
+            Verified verified = new Verified(claims.getSubject(), expiration.getTime());
+            synchronized (VERIFIED) {
+                VERIFIED.put(key, verified);
+            }
+            return verified;
         } catch (Exception e) {
             return null;
         }
     }
 
-    public static boolean isTokenExpired(String token) {
+    private static String digest(String token) {
         try {
-            Claims claims = Jwts.parserBuilder()
-                    .setSigningKey(SECRET_KEY)
-                    .build()
-                    .parseClaimsJws(token)
-                    .getBody();
-
-            return claims.getExpiration().before(new Date());
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(hash);
         } catch (Exception e) {
-            return true;
+            throw new IllegalStateException("SHA-256 not available", e);
         }
     }
 }
@@ -0,0 +1,48 @@
+package devserver;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with power-of-two microsecond buckets, for the
+ * percentiles in /metrics. Percentiles are bucket upper bounds, so at most 2x high.
+ */
+class LatencyHistogram {
+    private static final int BUCKETS = 32; // bucket i < 2^i microseconds
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    void record(long nanos) {
+        long micros = Math.max(1, nanos / 1000);
+        counts.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+    }
+
+    /**
+     * {"count", "p50_ms", "p99_ms", "max_ms"}
+     */
+    JSONObject toJson() {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        return new JSONObject()
+            .put("count", total)
+            .put("p50_ms", percentileMs(snapshot, total, 0.50))
+            .put("p99_ms", percentileMs(snapshot, total, 0.99))
+            .put("max_ms", percentileMs(snapshot, total, 1.0));
+    }
+
+    private static double percentileMs(long[] counts, long total, double p) {
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(p * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) return (1L << i) / 1000.0;
+        }
+        return (1L << (BUCKETS - 1)) / 1000.0;
+    }
+}
@@ -0,0 +1,219 @@
+package devserver;
+
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Failed-login throttling by username and by client IP, in fixed memory.
+ *
+ * Every failure goes into a count-min sketch over a sliding window (a ring of
+ * per-minute sketches, so old failures expire on their own). Only keys the sketch
+ * has seen failing PROMOTE_AT times get an exact entry with their recent failure
+ * times, in an LRU table of bounded size, and only those entries can throttle. A spray
+ * of made-up usernames therefore costs no memory beyond the sketch and cannot lock
+ * out real users through sketch collisions. If the sketch saturates, every key looks
+ * hot and the exact table degrades to plain LRU, except that throttled keys are
+ * evicted last: a key pushed out would start over from PROMOTE_AT.
+ *
+ * AuthServer checks before hashing, so a throttled principal never reaches PBKDF2.
+ */
+class LoginThrottle {
+    // Failures a key needs in the sketch before it is tracked exactly
+    private static final int PROMOTE_AT = 2;
+    private static final int SKETCH_DEPTH = 4;
+    private static final int SKETCH_WIDTH = 4096;
+    private static final int SKETCH_BUCKETS = 15;
+    private static final int HOT_KEYS = 10000;
+
+    private final Limiter users;
+    private final Limiter ips;
+
+    LoginThrottle(int maxUserFailures, int maxIpFailures, long windowMs) {
+        this.users = new Limiter(maxUserFailures, windowMs);
+        this.ips = new Limiter(maxIpFailures, windowMs);
+    }
+
+    /**
+     * @param username null to check only the IP
+     * @return 0 if allowed, otherwise ms until the oldest counted failure expires
+     */
+    long retryAfterMs(String ip, String username) {
+        long now = System.currentTimeMillis();
+        long wait = ips.retryAfterMs(ip, now);
+        if (username != null) {
+            wait = Math.max(wait, users.retryAfterMs(username, now));
+        }
+        return wait;
+    }
+
+    void recordFailure(String ip, String username) {
+        long now = System.currentTimeMillis();
+        ips.recordFailure(ip, now);
+        users.recordFailure(username, now);
+    }
+
+    // The IP keeps its count: one good password does not excuse a spray
+    void recordSuccess(String username) {
+        users.clear(username);
+    }
+
+    JSONObject toJson() {
+        return new JSONObject()
+            .put("users", users.toJson())
+            .put("ips", ips.toJson());
+    }
+
+    private static class Limiter {
+        final int limit;
+        final long windowMs;
+        final SlidingSketch sketch;
+        final LongAdder throttled = new LongAdder();
+        final Map<String, Failures> hot = new LinkedHashMap<String, Failures>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Failures> eldest) {
+                if (size() > HOT_KEYS) evictOne();
+                return false;
+            }
+        };
+        // Time of the failure being recorded, for evictOne
+        long clock;
+
+        Limiter(int limit, long windowMs) {
+            this.limit = limit;
+            this.windowMs = windowMs;
+            this.sketch = new SlidingSketch(windowMs / SKETCH_BUCKETS);
+        }
+
+        synchronized long retryAfterMs(String key, long now) {
+            Failures failures = hot.get(key);
+            if (failures == null) return 0;
+            if (failures.latest() + windowMs <= now) {
+                hot.remove(key);
+                return 0;
+            }
+            long wait = failures.retryAfterMs(now, windowMs);
+            if (wait > 0) throttled.increment();
+            return wait;
+        }
+
+        synchronized void recordFailure(String key, long now) {
+            int estimate = sketch.add(key, now);
+            clock = now;
+            Failures failures = hot.get(key);
+            if (failures == null) {
+                if (estimate < PROMOTE_AT) return;
+                failures = new Failures(limit);
+                // Count the failures seen before promotion, at most one phantom if the sketch collided
+                for (int i = 1; i < PROMOTE_AT; i++) {
+                    failures.add(now);
+                }
+                hot.put(key, failures);
+            }
+            failures.add(now);
+        }
+
+        // Drops the least recently used key that is not throttled, throttled ones are moved to the back
+        private void evictOne() {
+            for (int i = hot.size(); i > 0; i--) {
+                Map.Entry<String, Failures> eldest = hot.entrySet().iterator().next();
+                if (eldest.getValue().retryAfterMs(clock, windowMs) == 0) {
+                    hot.remove(eldest.getKey());
+                    return;
+                }
+                hot.get(eldest.getKey());
+            }
+            // Every key is throttled, the memory bound wins
+            hot.remove(hot.keySet().iterator().next());
+        }
+
+        synchronized void clear(String key) {
+            hot.remove(key);
+        }
+
+        synchronized JSONObject toJson() {
+            return new JSONObject()
+                .put("limit", limit)
+                .put("hot_keys", hot.size())
+                .put("throttled", throttled.sum());
+        }
+    }
+
+    // The last `limit` failure times of one key
+    private static class Failures {
+        final long[] times;
+        int next;
+        int size;
+
+        Failures(int limit) {
+            this.times = new long[limit];
+        }
+
+        void add(long now) {
+            times[next] = now;
+            next = (next + 1) % times.length;
+            if (size < times.length) size++;
+        }
+
+        long latest() {
+            return times[(next + times.length - 1) % times.length];
+        }
+
+        long retryAfterMs(long now, long windowMs) {
+            if (size < times.length) return 0;
+            long oldest = times[next]; // the ring is full, next is the oldest
+            return Math.max(0, oldest + windowMs - now);
+        }
+    }
+
+    /**
+     * Count-min sketch over a sliding window: SKETCH_BUCKETS sketches of bucketMs each,
+     * a bucket is cleared when the ring comes round to it again. Estimates never
+     * undercount failures within the window.
+     */
+    private static class SlidingSketch {
+        final long bucketMs;
+        final int[][] counts = new int[SKETCH_BUCKETS][SKETCH_DEPTH * SKETCH_WIDTH];
+        final long[] epochs = new long[SKETCH_BUCKETS];
+
+        SlidingSketch(long bucketMs) {
+            this.bucketMs = Math.max(1, bucketMs);
+        }
+
+        // Callers hold the Limiter lock
+        int add(String key, long now) {
+            long epoch = now / bucketMs;
+            int bucket = (int) (epoch % SKETCH_BUCKETS);
+            if (epochs[bucket] != epoch) {
+                Arrays.fill(counts[bucket], 0);
+                epochs[bucket] = epoch;
+            }
+            int hash = key.hashCode();
+            int estimate = Integer.MAX_VALUE;
+            for (int row = 0; row < SKETCH_DEPTH; row++) {
+                int column = row * SKETCH_WIDTH + index(hash, row);
+                counts[bucket][column]++;
+                int sum = 0;
+                for (int b = 0; b < SKETCH_BUCKETS; b++) {
+                    if (epoch - epochs[b] < SKETCH_BUCKETS) sum += counts[b][column];
+                }
+                estimate = Math.min(estimate, sum);
+            }
+            return estimate;
+        }
+
+        // One independent-enough hash per row from the key's hashCode
+        private static int index(int hash, int row) {
+            int h = hash + row * 0x9E3779B9;
+            h ^= h >>> 16;
+            h *= 0x85EBCA6B;
+            h ^= h >>> 13;
+            h *= 0xC2B2AE35;
+            h ^= h >>> 16;
+            return h & (SKETCH_WIDTH - 1);
+        }
+    }
+}
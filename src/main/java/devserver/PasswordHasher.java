@@ -0,0 +1,104 @@
+package devserver;
+
+import org.json.JSONObject;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.spec.KeySpec;
+import java.util.Base64;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * PBKDF2 for AuthServer on a pool sized to the cores, with a bounded wait queue.
+ *
+ * A login storm cannot queue without bound: when the queue is full, or a request has
+ * already waited maxQueueWaitMs (its client has likely given up), hash returns null
+ * and the caller answers 503 with Retry-After. Queue and hash times are kept for
+ * /metrics.
+ */
+class PasswordHasher {
+    static final int ITERATIONS = 65536;
+    private static final int KEY_LENGTH = 256;
+
+    private final ThreadPoolExecutor pool;
+    private final long maxQueueWaitNanos;
+    private final LatencyHistogram queueTime = new LatencyHistogram();
+    private final LatencyHistogram hashTime = new LatencyHistogram();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+
+    PasswordHasher(int threads, int queueCapacity, long maxQueueWaitMs) {
+        AtomicInteger count = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(queueCapacity), r -> {
+                Thread t = new Thread(r, "pbkdf2-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }, new ThreadPoolExecutor.AbortPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        this.maxQueueWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxQueueWaitMs);
+    }
+
+    /**
+     * @return the Base64 hash, or null if the pool is saturated
+     */
+    String hash(String password, byte[] salt) throws Exception {
+        long queuedAt = System.nanoTime();
+        Future<String> result;
+        try {
+            result = pool.submit(() -> {
+                long started = System.nanoTime();
+                queueTime.record(started - queuedAt);
+                if (started - queuedAt > maxQueueWaitNanos) {
+                    expired.increment();
+                    return null;
+                }
+                String hash = pbkdf2(password, salt);
+                hashTime.record(System.nanoTime() - started);
+                return hash;
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            return null;
+        }
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+            throw e;
+        }
+    }
+
+    // Rough wait for a client turned away now: the queue ahead of it, drained by all threads
+    int retryAfterSeconds() {
+        JSONObject hash = hashTime.toJson();
+        double perHashMs = Math.max(1, hash.getDouble("p50_ms"));
+        double drainMs = pool.getQueue().size() * perHashMs / pool.getMaximumPoolSize();
+        return (int) Math.max(1, Math.ceil(drainMs / 1000));
+    }
+
+    JSONObject toJson() {
+        return new JSONObject()
+            .put("threads", pool.getMaximumPoolSize())
+            .put("active", pool.getActiveCount())
+            .put("queued", pool.getQueue().size())
+            .put("rejected", rejected.sum())
+            .put("expired", expired.sum())
+            .put("queue_time", queueTime.toJson())
+            .put("hash_time", hashTime.toJson());
+    }
+
+    static String pbkdf2(String password, byte[] salt) throws Exception {
+        KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, ITERATIONS, KEY_LENGTH);
+        SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+        byte[] hash = factory.generateSecret(spec).getEncoded();
+        return Base64.getEncoder().encodeToString(hash);
+    }
+}
@@ -0,0 +1,203 @@
+package devserver;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Previews of uploaded images, made in the background after FILE_END so timelines can
+ * load a few KB instead of the original.
+ *
+ * Each size bounds the longest edge; sizes at or above the original's are skipped.
+ * Previews are JPEG, or PNG when the image has transparency, and are written next to
+ * the original as "<fileId>-<name>.<px>.jpg". FileServer serves them for ?size=<px>.
+ *
+ * The source is decoded with subsampling so a large photo never has to fit in memory
+ * at full resolution. Formats ImageIO cannot read (webp, CMYK JPEG, ...) get no preview.
+ */
+class ThumbnailGenerator {
+    static final int[] SIZES = {160, 480, 1024};
+    private static final long MAX_SOURCE_BYTES = 64L * 1024 * 1024;
+    private static final long MAX_SOURCE_PIXELS = 100_000_000L;
+    private static final float JPEG_QUALITY = 0.8f;
+    private static final int QUEUE_CAPACITY = 64;
+
+    private final Path dir;
+    private final FileCatalog catalog;
+    // One low-priority thread: previews must not compete with transfers for CPU
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(QUEUE_CAPACITY), r -> {
+            Thread t = new Thread(r, "ThumbnailGenerator");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }, new ThreadPoolExecutor.AbortPolicy());
+
+    ThumbnailGenerator(Path dir, FileCatalog catalog) {
+        this.dir = dir;
+        this.catalog = catalog;
+        if (System.getProperty("java.awt.headless") == null) {
+            System.setProperty("java.awt.headless", "true");
+        }
+        ImageIO.setUseCache(false); // decode in memory, not through temp files
+    }
+
+    void submit(FileCatalog.Entry entry) {
+        if (!entry.mimeType.startsWith("image/") || entry.size > MAX_SOURCE_BYTES) {
+            return;
+        }
+        try {
+            executor.execute(() -> generate(entry));
+        } catch (RejectedExecutionException e) {
+            System.err.println("[FileTransfer] Thumbnail queue full, no preview for " + entry.fileId);
+        }
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void generate(FileCatalog.Entry entry) {
+        long started = System.currentTimeMillis();
+        try {
+            BufferedImage image = decode(dir.resolve(entry.diskName()), SIZES[SIZES.length - 1]);
+            if (image == null) {
+                return;
+            }
+            boolean alpha = image.getColorModel().hasAlpha();
+            Map<Integer, FileCatalog.Entry> thumbnails = new TreeMap<>();
+            // Largest first, each smaller size is scaled down from the previous one
+            BufferedImage current = image;
+            for (int i = SIZES.length - 1; i >= 0; i--) {
+                if (Math.max(current.getWidth(), current.getHeight()) <= SIZES[i]) continue;
+                current = scale(current, SIZES[i], alpha);
+                thumbnails.put(SIZES[i], write(entry, SIZES[i], current, alpha));
+            }
+            if (!thumbnails.isEmpty()) {
+                catalog.addThumbnails(entry.fileId, thumbnails);
+                System.out.println("[FileTransfer] " + thumbnails.size() + " previews for " + entry.fileId
+                    + " in " + (System.currentTimeMillis() - started) + " ms");
+            }
+        } catch (Exception | OutOfMemoryError e) {
+            System.err.println("[FileTransfer] No preview for " + entry.fileId + ": " + e);
+        }
+    }
+
+    /**
+     * @return the image subsampled to no less than twice maxEdge, or null if ImageIO
+     *         cannot read it
+     */
+    private static BufferedImage decode(Path source, int maxEdge) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(source.toFile())) {
+            Iterator<ImageReader> readers = in != null ? ImageIO.getImageReaders(in) : null;
+            if (readers == null || !readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                if ((long) width * height > MAX_SOURCE_PIXELS) {
+                    throw new IOException("image too large: " + width + "x" + height);
+                }
+                ImageReadParam param = reader.getDefaultReadParam();
+                int step = Math.max(1, Math.max(width, height) / (2 * maxEdge));
+                param.setSourceSubsampling(step, step, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    // Halve with bilinear filtering until within 2x, then one last step to the exact size
+    private static BufferedImage scale(BufferedImage source, int maxEdge, boolean alpha) {
+        double ratio = (double) maxEdge / Math.max(source.getWidth(), source.getHeight());
+        int targetWidth = Math.max(1, (int) Math.round(source.getWidth() * ratio));
+        int targetHeight = Math.max(1, (int) Math.round(source.getHeight() * ratio));
+        BufferedImage current = source;
+        do {
+            int width = Math.max(targetWidth, current.getWidth() / 2);
+            int height = Math.max(targetHeight, current.getHeight() / 2);
+            BufferedImage next = new BufferedImage(width, height,
+                alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = next.createGraphics();
+            try {
+                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                g.drawImage(current, 0, 0, width, height, null);
+            } finally {
+                g.dispose();
+            }
+            current = next;
+        } while (current.getWidth() > targetWidth || current.getHeight() > targetHeight);
+        return current;
+    }
+
+    private FileCatalog.Entry write(FileCatalog.Entry entry, int px, BufferedImage image, boolean alpha) throws IOException {
+        byte[] bytes = alpha ? encodePng(image) : encodeJpeg(image);
+        String name = entry.name + "." + px + (alpha ? ".png" : ".jpg");
+        Path target = dir.resolve(entry.fileId + "-" + name);
+        Path tmp = dir.resolve(target.getFileName() + ".tmp");
+        Files.write(tmp, bytes);
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return new FileCatalog.Entry(entry.fileId, name, bytes.length, alpha ? "image/png" : "image/jpeg",
+            sha256(bytes), Files.getLastModifiedTime(target).toMillis());
+    }
+
+    private static byte[] encodePng(BufferedImage image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+
+    private static byte[] encodeJpeg(BufferedImage image) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(JPEG_QUALITY);
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+    private static String sha256(byte[] bytes) {
+        try {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes)) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package devserver;
+
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.handshake.ServerHandshake;
+import org.json.JSONObject;
+
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Chat latency under upload load: starts a ChatServer, measures MSG_DIRECT round
+ * trips while idle, then again while several clients upload --size-mb in total
+ * over FILE_CHUNK with an ACK window like the frontend's (--window chunks).
+ *
+ * Usage:
+ *   mvn exec:java -Dexec.mainClass=devserver.TransferBenchmark \
+ *       -Dexec.args="--size-mb=256 --uploaders=8 --global-mbps=16 --user-mbps=8 --transfer-mbps=4"
+ *
+ * --scheduler=off runs the same load without bandwidth budgets for comparison.
+ * Uploaded files land in ./uploads/files and are removed afterwards.
+ */
+public class TransferBenchmark {
+    private static final int CHUNK_SIZE = 512 * 1024;
+    // ChatServer allows 10 messages per second per connection
+    private static final long SEND_INTERVAL_MS = 110;
+
+    private final Map<String, String> options;
+    private final int port;
+
+    TransferBenchmark(Map<String, String> options) {
+        this.options = options;
+        this.port = (int) longOpt("port", 18090);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) continue;
+            String[] kv = arg.substring(2).split("=", 2);
+            options.put(kv[0], kv.length > 1 ? kv[1] : "true");
+        }
+        new TransferBenchmark(options).run();
+        System.exit(0);
+    }
+
+    void run() throws Exception {
+        long sizeBytes = longOpt("size-mb", 256) * 1024 * 1024;
+        int uploaders = (int) longOpt("uploaders", 8);
+        int pings = (int) longOpt("pings", 200);
+        int window = (int) longOpt("window", 8);
+        boolean scheduled = !"off".equals(options.get("scheduler"));
+
+        TransferScheduler scheduler = scheduled
+            ? new TransferScheduler(longOpt("global-mbps", 16) << 20, longOpt("user-mbps", 8) << 20,
+                longOpt("transfer-mbps", 4) << 20, CHUNK_SIZE)
+            : TransferScheduler.unlimited(CHUNK_SIZE);
+        ChatServer server = new ChatServer(port, new FileTransferManager(scheduler));
+        server.start();
+        Thread.sleep(500);
+
+        Client echo = connect("bench-echo");
+        Client pinger = connect("bench-pinger");
+
+        List<Long> idle = ping(pinger, pings);
+        report("idle", idle);
+
+        long perUploader = sizeBytes / uploaders;
+        CountDownLatch done = new CountDownLatch(uploaders);
+        long started = System.nanoTime();
+        for (int i = 0; i < uploaders; i++) {
+            Client uploader = connect("bench-up-" + i);
+            String fileId = "bench" + i + "-" + System.nanoTime();
+            Thread t = new Thread(() -> {
+                try {
+                    upload(uploader, fileId, perUploader, window);
+                } catch (Exception e) {
+                    System.err.println("[BENCH] upload failed: " + e.getMessage());
+                } finally {
+                    done.countDown();
+                }
+            }, "bench-upload-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        List<Long> loaded = new ArrayList<>();
+        while (done.getCount() > 0 && loaded.size() < pings * 10) {
+            loaded.addAll(ping(pinger, 20));
+        }
+        done.await();
+        double seconds = (System.nanoTime() - started) / 1e9;
+        report("uploading", loaded);
+        System.out.println("[BENCH] scheduler=" + (scheduled ? "on" : "off") + " uploaded "
+            + (perUploader * uploaders >> 20) + " MB in " + String.format("%.1f", seconds) + " s ("
+            + String.format("%.1f", perUploader * uploaders / seconds / (1 << 20)) + " MB/s)");
+
+        echo.close();
+        pinger.close();
+        deleteUploads();
+    }
+
+    private void upload(Client client, String fileId, long size, int window) throws Exception {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        new Random(fileId.hashCode()).nextBytes(chunk);
+        String ciphertext = Base64.getEncoder().encodeToString(chunk);
+        int totalChunks = (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        long fullSize = (long) totalChunks * CHUNK_SIZE;
+
+        String startNonce = client.send("FILE_START", "server", new JSONObject()
+            .put("file_id", fileId).put("name", fileId + ".bin").put("size", fullSize)
+            .put("mode", "public").put("chunk_size", CHUNK_SIZE));
+        client.awaitAck(startNonce);
+
+        List<String> unacked = new ArrayList<>();
+        for (int i = 0; i < totalChunks; i++) {
+            if (unacked.size() >= window) {
+                client.awaitAck(unacked.remove(0));
+            }
+            long sentAt = System.currentTimeMillis();
+            unacked.add(client.send("FILE_CHUNK", "server", new JSONObject()
+                .put("file_id", fileId).put("index", i).put("ciphertext", ciphertext)));
+            long wait = SEND_INTERVAL_MS - (System.currentTimeMillis() - sentAt);
+            if (wait > 0) Thread.sleep(wait);
+        }
+        for (String nonce : unacked) {
+            client.awaitAck(nonce);
+        }
+        client.awaitAck(client.send("FILE_END", "server", new JSONObject().put("file_id", fileId)));
+        client.close();
+    }
+
+    private List<Long> ping(Client pinger, int count) throws Exception {
+        List<Long> latencies = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            long start = System.nanoTime();
+            String nonce = pinger.send("MSG_DIRECT", "bench-echo", new JSONObject().put("ciphertext", "ping"));
+            if (pinger.awaitEcho(nonce)) {
+                latencies.add(System.nanoTime() - start);
+            }
+            Thread.sleep(SEND_INTERVAL_MS);
+        }
+        return latencies;
+    }
+
+    private Client connect(String name) throws Exception {
+        Client client = new Client(new URI("ws://127.0.0.1:" + port), name);
+        client.connectBlocking();
+        client.send("USER_HELLO", "server", new JSONObject().put("client", name));
+        return client;
+    }
+
+    private static void report(String phase, List<Long> latencies) {
+        List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        System.out.println("[BENCH] " + phase + ": " + sorted.size() + " pings, MSG_DIRECT p50="
+            + String.format("%.2f", percentile(sorted, 0.50) / 1e6) + " ms p99="
+            + String.format("%.2f", percentile(sorted, 0.99) / 1e6) + " ms max="
+            + String.format("%.2f", percentile(sorted, 1.0) / 1e6) + " ms");
+    }
+
+    private static long percentile(List<Long> sorted, double p) {
+        if (sorted.isEmpty()) return 0;
+        int index = (int) Math.ceil(p * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+    }
+
+    // The objects behind these links are left to FileTransferManager's object GC
+    private static void deleteUploads() {
+        try (Stream<Path> stream = Files.list(Paths.get("./uploads/files"))) {
+            stream.filter(p -> p.getFileName().toString().startsWith("bench"))
+                .forEach(p -> p.toFile().delete());
+        } catch (Exception e) {
+            System.err.println("[BENCH] cleanup failed: " + e.getMessage());
+        }
+    }
+
+    private long longOpt(String key, long def) {
+        return options.containsKey(key) ? Long.parseLong(options.get(key)) : def;
+    }
+
+    private static class Client extends WebSocketClient {
+        private final String name;
+        private final Map<String, BlockingQueue<Boolean>> waiting = new ConcurrentHashMap<>();
+
+        Client(URI uri, String name) {
+            super(uri);
+            this.name = name;
+        }
+
+        String send(String type, String to, JSONObject payload) {
+            String nonce = UUID.randomUUID().toString().replace("-", "");
+            waiting.put(nonce, new ArrayBlockingQueue<>(1));
+            send(new JSONObject().put("type", type).put("from", name).put("to", to)
+                .put("ts", System.currentTimeMillis() / 1000).put("nonce", nonce)
+                .put("payload", payload).put("sig", "bench").toString());
+            return nonce;
+        }
+
+        void awaitAck(String nonce) throws InterruptedException {
+            await(nonce, 60);
+        }
+
+        boolean awaitEcho(String nonce) throws InterruptedException {
+            return await(nonce, 10);
+        }
+
+        private boolean await(String nonce, int timeoutSeconds) throws InterruptedException {
+            BlockingQueue<Boolean> queue = waiting.get(nonce);
+            boolean ok = queue != null && queue.poll(timeoutSeconds, TimeUnit.SECONDS) != null;
+            waiting.remove(nonce);
+            return ok;
+        }
+
+        @Override public void onMessage(String message) {
+            JSONObject json = new JSONObject(message);
+            // ACK payload.msg_ref, or our own MSG_DIRECT echoed back
+            String ref = "ACK".equals(json.optString("type"))
+                ? json.getJSONObject("payload").optString("msg_ref") : json.optString("nonce");
+            BlockingQueue<Boolean> queue = waiting.get(ref);
+            if (queue != null) queue.offer(Boolean.TRUE);
+        }
+
+        @Override public void onOpen(ServerHandshake handshake) {}
+        @Override public void onClose(int code, String reason, boolean remote) {}
+        @Override public void onError(Exception ex) {
+            System.err.println("[BENCH] " + name + ": " + ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package devserver;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Append-only JSON-lines log of upload state ("start", "chunk", "end" records),
+ * replayed at startup so in-flight transfers survive a restart. FileCatalog keeps
+ * its manifest in one as well.
+ *
+ * Records are not fsynced one by one: recovery re-hashes every journaled chunk
+ * against the part file, so a record whose data never reached the disk is dropped
+ * and the client simply resends that chunk.
+ */
+class TransferJournal {
+    private final Path path;
+    private FileChannel channel;
+
+    TransferJournal(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * All readable records; a torn last line from a crash is skipped
+     */
+    synchronized List<JSONObject> readAll() {
+        List<JSONObject> records = new ArrayList<>();
+        if (!Files.exists(path)) {
+            return records;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) continue;
+                try {
+                    records.add(new JSONObject(line));
+                } catch (JSONException e) {
+                    System.err.println("[FileTransfer] Skipping unreadable journal record");
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("[FileTransfer] Failed to read journal: " + e.getMessage());
+        }
+        return records;
+    }
+
+    synchronized void append(JSONObject record) {
+        try {
+            if (channel == null) {
+                channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+            }
+            ByteBuffer line = ByteBuffer.wrap((record.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+            while (line.hasRemaining()) {
+                channel.write(line);
+            }
+        } catch (IOException e) {
+            System.err.println("[FileTransfer] Failed to append to journal: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Replace the journal with the records describing the live state. The supplier runs
+     * under the journal lock, so no append can slip in between snapshot and rewrite.
+     */
+    synchronized void compact(Supplier<List<JSONObject>> liveRecords) {
+        Path tmp = path.resolveSibling(path.getFileName() + ".compact");
+        try {
+            StringBuilder content = new StringBuilder();
+            for (JSONObject record : liveRecords.get()) {
+                content.append(record.toString()).append('\n');
+            }
+            Files.write(tmp, content.toString().getBytes(StandardCharsets.UTF_8));
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+            try {
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            System.err.println("[FileTransfer] Failed to compact journal: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package devserver;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shares upload bandwidth between concurrent transfers.
+ *
+ * Every chunk has to be admitted before it is written. Admission draws from three
+ * token buckets (global, the uploading user, the transfer) and the transfers waiting
+ * for bandwidth are served by deficit round-robin, so one big upload cannot starve
+ * the others and the total stays under the global budget.
+ *
+ * A chunk that is not admitted yet is simply held back, and the sender only gets
+ * its ACK once the chunk is written. A client with a bounded ACK window therefore
+ * slows down to its share; HTTP uploads pause reading the request body instead.
+ */
+class TransferScheduler {
+    private static final long TICK_MS = 10;
+    private static final int QUANTUM = 64 * 1024;
+    // Held-back chunks per transfer; a sender ignoring its ACK window gets an error instead
+    private static final int MAX_QUEUED_CHUNKS = 16;
+    private static final long IDLE_FLOW_MS = 10 * 60 * 1000;
+
+    static final String QUEUE_FULL = "Too many chunks waiting for bandwidth, wait for ACKs before sending more";
+
+    private static class Bucket {
+        final double rate; // bytes per second, <= 0 means unlimited
+        final double burst;
+        double tokens;
+
+        Bucket(long bytesPerSecond, int minBurst) {
+            this.rate = bytesPerSecond;
+            this.burst = Math.max(bytesPerSecond / 4.0, minBurst);
+            this.tokens = burst;
+        }
+
+        void refill(double seconds) {
+            if (rate > 0) tokens = Math.min(burst, tokens + rate * seconds);
+        }
+
+        boolean has(int bytes) {
+            return rate <= 0 || tokens >= bytes;
+        }
+
+        void take(int bytes) {
+            if (rate > 0) tokens -= bytes;
+        }
+    }
+
+    private static class Request {
+        final int bytes;
+        final CompletableFuture<String> admitted = new CompletableFuture<>();
+
+        Request(int bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    private static class Flow {
+        final String fileId;
+        final String user;
+        final Bucket bucket;
+        final ArrayDeque<Request> queue = new ArrayDeque<>();
+        int deficit;
+        boolean active;
+        long lastUsed = System.currentTimeMillis();
+
+        Flow(String fileId, String user, Bucket bucket) {
+            this.fileId = fileId;
+            this.user = user;
+            this.bucket = bucket;
+        }
+    }
+
+    private final long userRate;
+    private final long transferRate;
+    private final int maxChunk;
+    private final Bucket global;
+    private final Map<String, Bucket> users = new HashMap<>();
+    private final Map<String, Flow> flows = new HashMap<>();
+    private final ArrayDeque<Flow> activeFlows = new ArrayDeque<>(); // DRR order
+    private final ScheduledExecutorService ticker;
+    private long lastRefillNanos = System.nanoTime();
+
+    /**
+     * Budgets in bytes per second; 0 disables that limit
+     */
+    TransferScheduler(long globalRate, long userRate, long transferRate, int maxChunk) {
+        this.userRate = userRate;
+        this.transferRate = transferRate;
+        this.maxChunk = maxChunk;
+        this.global = new Bucket(globalRate, maxChunk);
+        this.ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "transfer-scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+        ticker.scheduleAtFixedRate(() -> {
+            try {
+                tick();
+            } catch (Throwable t) {
+                System.err.println("[FileTransfer] Scheduler tick failed: " + t);
+            }
+        }, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    static TransferScheduler unlimited(int maxChunk) {
+        return new TransferScheduler(0, 0, 0, maxChunk);
+    }
+
+    /**
+     * Queue a chunk of this transfer for bandwidth. Requests of one transfer are admitted
+     * in order; a 0-byte request (FILE_END) is admitted right after the chunks before it.
+     * @return future completing with null once admitted, or with an error message
+     */
+    CompletableFuture<String> admit(String user, String fileId, int bytes) {
+        Request request = new Request(Math.min(Math.max(bytes, 0), maxChunk));
+        synchronized (this) {
+            Flow flow = flows.get(fileId);
+            if (flow == null) {
+                flow = new Flow(fileId, user == null ? "" : user, new Bucket(transferRate, maxChunk));
+                flows.put(fileId, flow);
+            }
+            if (flow.queue.size() >= MAX_QUEUED_CHUNKS) {
+                request.admitted.complete(QUEUE_FULL);
+                return request.admitted;
+            }
+            flow.lastUsed = System.currentTimeMillis();
+            flow.queue.add(request);
+            if (!flow.active) {
+                flow.active = true;
+                activeFlows.add(flow);
+            }
+        }
+        return request.admitted;
+    }
+
+    /**
+     * Forget a finished transfer
+     */
+    synchronized void finish(String fileId) {
+        Flow flow = flows.get(fileId);
+        if (flow != null && flow.queue.isEmpty()) {
+            flows.remove(fileId);
+            activeFlows.remove(flow);
+        }
+    }
+
+    synchronized int queuedChunks() {
+        int queued = 0;
+        for (Flow flow : activeFlows) {
+            queued += flow.queue.size();
+        }
+        return queued;
+    }
+
+    void shutdown() {
+        ticker.shutdownNow();
+    }
+
+    private void tick() {
+        List<Request> granted = new ArrayList<>();
+        synchronized (this) {
+            long now = System.nanoTime();
+            double seconds = (now - lastRefillNanos) / 1e9;
+            lastRefillNanos = now;
+            global.refill(seconds);
+            for (Bucket bucket : users.values()) {
+                bucket.refill(seconds);
+            }
+            for (Flow flow : flows.values()) {
+                flow.bucket.refill(seconds);
+            }
+
+            // DRR rounds until nobody can make progress
+            boolean progress = true;
+            while (progress && !activeFlows.isEmpty()) {
+                progress = false;
+                int round = activeFlows.size();
+                for (int i = 0; i < round; i++) {
+                    Flow flow = activeFlows.poll();
+                    Bucket user = users.computeIfAbsent(flow.user, k -> new Bucket(userRate, maxChunk));
+                    Request head = flow.queue.peek();
+                    if (head != null && allowed(flow, user, head.bytes)) {
+                        flow.deficit += QUANTUM;
+                        progress = true;
+                    }
+                    while (head != null && head.bytes <= flow.deficit && allowed(flow, user, head.bytes)) {
+                        flow.queue.poll();
+                        flow.deficit -= head.bytes;
+                        global.take(head.bytes);
+                        user.take(head.bytes);
+                        flow.bucket.take(head.bytes);
+                        granted.add(head);
+                        head = flow.queue.peek();
+                    }
+                    if (head == null) {
+                        flow.deficit = 0;
+                        flow.active = false;
+                    } else {
+                        // Blocked by a budget: do not bank credit while waiting for tokens
+                        flow.deficit = Math.min(flow.deficit, head.bytes);
+                        activeFlows.add(flow);
+                    }
+                }
+            }
+
+            long idleCutoff = System.currentTimeMillis() - IDLE_FLOW_MS;
+            Iterator<Flow> iter = flows.values().iterator();
+            while (iter.hasNext()) {
+                Flow flow = iter.next();
+                if (!flow.active && flow.lastUsed < idleCutoff) {
+                    iter.remove();
+                }
+            }
+            if (activeFlows.isEmpty() && flows.isEmpty()) {
+                users.clear();
+            }
+        }
+        // Outside the lock: completing runs the callers' continuations (the disk write)
+        for (Request request : granted) {
+            request.admitted.complete(null);
+        }
+    }
+
+    private boolean allowed(Flow flow, Bucket user, int bytes) {
+        return global.has(bytes) && user.has(bytes) && flow.bucket.has(bytes);
+    }
+}
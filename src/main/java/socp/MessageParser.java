@@ -8,6 +8,7 @@ import org.everit.json.schema.Schema;
 import org.everit.json.schema.loader.SchemaLoader;
 
 import java.io.*;
+import java.security.SecureRandom;
 import java.util.*;
 
 /**
@@ -17,6 +18,7 @@ import java.util.*;
 public class MessageParser {
     private final ObjectMapper mapper = new ObjectMapper();
     private final Schema schema;
+    private final SecureRandom random = new SecureRandom();
     
     public MessageParser(String schemaPath) throws IOException {
         // Load JSON schema from resources
@@ -52,6 +54,7 @@ public class MessageParser {
         message.setFrom(from);
         message.setTo(to);
         message.setTs(System.currentTimeMillis());
+        message.setNonce(generateNonce());
         message.setPayload(payload);
         message.setSig(""); // Will be populated by crypto layer
         
@@ -68,6 +71,19 @@ public class MessageParser {
         schema.validate(obj); // throws ValidationException if invalid
     }
     
+    /**
+     * 32 hex chars, same format as the frontend nonce
+     */
+    private String generateNonce() {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        StringBuilder sb = new StringBuilder(32);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
     /**
      * Re-serialize message for forwarding
      */
@@ -22,6 +22,7 @@ public class MessageTypes {
     public static final String FILE_START = "FILE_START";
     public static final String FILE_CHUNK = "FILE_CHUNK";
     public static final String FILE_END = "FILE_END";
+    public static final String FILE_STATUS = "FILE_STATUS";
     public static final String ACK = "ACK";
     public static final String ERROR = "ERROR";
 
@@ -55,6 +56,7 @@ public class MessageTypes {
                FILE_START.equals(type) ||
                FILE_CHUNK.equals(type) ||
                FILE_END.equals(type) ||
+               FILE_STATUS.equals(type) ||
                ACK.equals(type) ||
                ERROR.equals(type) ||
                FIND_NODE.equals(type) ||
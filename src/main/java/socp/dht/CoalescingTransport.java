@@ -0,0 +1,181 @@
+package socp.dht;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-peer send queue in front of the WebSocketSender. Everything queued for
+ * one peer within a tick goes out as a single frame: a lone message is sent
+ * unchanged, several are sent as a JSON array of messages. Every receiver must
+ * unpack such arrays: DhtService.processIncomingMessage does for DHT peers, and
+ * the web client (frontend/src/services/ws.ts) does for browser connections,
+ * which ChatServer.sendToPeer also writes to.
+ *
+ * Queues are bounded; once a peer's queue is full (by count or bytes) it is
+ * flushed on the calling thread instead of waiting for the tick. Frames to one
+ * peer are drained and sent under the same lock, so an overflow flush cannot
+ * overtake a batch already on its way. A queue left empty after a flush is
+ * dropped, peers we only answer once do not keep one around.
+ */
+class CoalescingTransport {
+
+    interface FailureListener {
+        void onSendFailure(String peerId, Exception e);
+    }
+
+    private final DhtService.WebSocketSender sender;
+    private final ScheduledExecutorService scheduler;
+    private final FailureListener failureListener;
+    private final long tickMs;
+    private final int maxMessages;
+    private final int maxBytes;
+
+    private final Map<String, PeerQueue> queues = new ConcurrentHashMap<>();
+    private final AtomicLong messagesSent = new AtomicLong();
+    private final AtomicLong framesSent = new AtomicLong();
+
+    private static class PeerQueue {
+        // Held from drain until the frame is handed to the sender
+        final Object sendLock = new Object();
+        List<String> pending = new ArrayList<>();
+        int pendingBytes;
+        boolean flushScheduled;
+        // Removed from the map, senders must take a fresh queue
+        boolean retired;
+    }
+
+    CoalescingTransport(DhtService.WebSocketSender sender, ScheduledExecutorService scheduler,
+                        FailureListener failureListener, long tickMs, int maxMessages, int maxBytes) {
+        this.sender = sender;
+        this.scheduler = scheduler;
+        this.failureListener = failureListener;
+        this.tickMs = tickMs;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+    }
+
+    void send(String peerId, String json) {
+        PeerQueue queue;
+        boolean full;
+        boolean scheduleFlush = false;
+        while (true) {
+            queue = queues.computeIfAbsent(peerId, id -> new PeerQueue());
+            synchronized (queue) {
+                if (queue.retired) continue;
+                queue.pending.add(json);
+                queue.pendingBytes += json.length();
+                full = queue.pending.size() >= maxMessages || queue.pendingBytes >= maxBytes;
+                if (!full && !queue.flushScheduled) {
+                    queue.flushScheduled = true;
+                    scheduleFlush = true;
+                }
+            }
+            break;
+        }
+
+        if (full) {
+            flush(peerId, queue, false);
+        } else if (scheduleFlush) {
+            PeerQueue scheduled = queue;
+            try {
+                scheduler.schedule(() -> flush(peerId, scheduled, true), tickMs, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                flush(peerId, scheduled, true); // scheduler is shutting down, do not hold messages back
+            }
+        }
+    }
+
+    void flush(String peerId) {
+        PeerQueue queue = queues.get(peerId);
+        if (queue != null) {
+            flush(peerId, queue, false);
+        }
+    }
+
+    private void flush(String peerId, PeerQueue queue, boolean tick) {
+        synchronized (queue.sendLock) {
+            List<String> batch;
+            synchronized (queue) {
+                if (tick) queue.flushScheduled = false;
+                batch = drain(queue);
+            }
+            if (!batch.isEmpty()) {
+                sendFrame(peerId, batch);
+            }
+            synchronized (queue) {
+                // Still under sendLock, so a replacement queue cannot send before this frame
+                if (queue.pending.isEmpty() && !queue.flushScheduled && !queue.retired) {
+                    queue.retired = true;
+                    queues.remove(peerId, queue);
+                }
+            }
+        }
+    }
+
+    void removePeer(String peerId) {
+        PeerQueue queue = queues.get(peerId);
+        if (queue == null) return;
+        synchronized (queue.sendLock) {
+            List<String> batch;
+            synchronized (queue) {
+                queue.retired = true;
+                batch = drain(queue);
+            }
+            queues.remove(peerId, queue);
+            if (!batch.isEmpty()) {
+                sendFrame(peerId, batch);
+            }
+        }
+    }
+
+    void flushAll() {
+        for (String peerId : queues.keySet()) {
+            flush(peerId);
+        }
+    }
+
+    private List<String> drain(PeerQueue queue) {
+        List<String> batch = queue.pending;
+        queue.pending = new ArrayList<>();
+        queue.pendingBytes = 0;
+        return batch;
+    }
+
+    private void sendFrame(String peerId, List<String> batch) {
+        String frame;
+        if (batch.size() == 1) {
+            frame = batch.get(0);
+        } else {
+            StringBuilder sb = new StringBuilder(batch.stream().mapToInt(String::length).sum() + batch.size() + 1);
+            sb.append('[');
+            for (int i = 0; i < batch.size(); i++) {
+                if (i > 0) sb.append(',');
+                sb.append(batch.get(i));
+            }
+            sb.append(']');
+            frame = sb.toString();
+        }
+
+        try {
+            sender.sendToPeer(peerId, frame);
+            framesSent.incrementAndGet();
+            messagesSent.addAndGet(batch.size());
+        } catch (Exception e) {
+            failureListener.onSendFailure(peerId, e);
+        }
+    }
+
+    long getMessagesSent() { return messagesSent.get(); }
+    long getFramesSent() { return framesSent.get(); }
+
+    double getBatchFactor() {
+        long frames = framesSent.get();
+        return frames == 0 ? 0.0 : (double) messagesSent.get() / frames;
+    }
+}
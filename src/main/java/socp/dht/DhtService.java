@@ -3,16 +3,21 @@ package socp.dht;
 import socp.Message;
 import socp.MessageTypes;
 import socp.MessageParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.Map;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.stream.Collectors;
 
 
@@ -21,28 +26,75 @@ public class DhtService {
     private final KademliaNode localNode;
     private final RoutingTable routingTable;
     private final MessageParser parser;
-    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final ScheduledExecutorService scheduler;
+    private final boolean ownsScheduler;
+    private final StripedExecutor workers;
+    private final boolean ownsWorkers;
+    private final List<ScheduledFuture<?>> backgroundTasks = new ArrayList<>();
     
     @FunctionalInterface
     public interface WebSocketSender {
         void sendToPeer(String peerId, String jsonMessage);
     }
-    private final WebSocketSender wsSender;
+    private final CoalescingTransport transport;
+    private static final ObjectMapper BATCH_MAPPER = new ObjectMapper();
 
+    /**
+     * Receives routed messages addressed to this node that the DHT itself does not consume
+     */
+    @FunctionalInterface
+    public interface DeliveryListener {
+        void onDeliver(Message msg);
+    }
+    private volatile DeliveryListener deliveryListener;
 
-    private static final int TTL_MAX = 10;
+
+    public static final int TTL_MAX = 10;
     private static final int HEARTBEAT_INTERVAL_SECONDS = 30;
     private static final int NODE_TIMEOUT_SECONDS = 60; 
     private static final int MULTIPATH_FORWARD_COUNT = 3; 
+    private static final double TARGET_DELIVERY_PROBABILITY = 0.99;
+    private static final int SEEN_CACHE_SIZE = 8192;
+    private static final long SEEN_CACHE_MAX_AGE_MS = 5 * 60 * 1000;
+    private static final long COALESCE_TICK_MS = 5;
+    private static final int COALESCE_MAX_MESSAGES = 64;
+    private static final int COALESCE_MAX_BYTES = 256 * 1024;
+
+    private final SeenMessageCache seenMessages = new SeenMessageCache(SEEN_CACHE_SIZE, SEEN_CACHE_MAX_AGE_MS);
+    private final Map<String, RouteStats> routeStats = new ConcurrentHashMap<>();
 
 
     private final AtomicLong requestIdCounter = new AtomicLong();
     private final Map<Long, NodeLookupCallback> pendingNodeLookups = new ConcurrentHashMap<>();
     private final Map<Long, ValueLookupCallback> pendingValueLookups = new ConcurrentHashMap<>();
+    private final Map<Long, InFlightRequest> inFlightRequests = new ConcurrentHashMap<>();
+
+    // Peers a request went to and have not answered yet, for RTT samples and the RPC timeout
+    private static final class InFlightRequest {
+        final long sentAtNanos = System.nanoTime();
+        final Set<String> awaiting = ConcurrentHashMap.newKeySet();
+        volatile ScheduledFuture<?> timeout;
+    }
     
 
-    private final Map<String, Object> localStorage = new ConcurrentHashMap<>();
-    private final Map<String, Long> valueExpiry = new ConcurrentHashMap<>();
+    // Value and expiry live in one immutable entry so readers never see one without the other
+    private static final class StoredValue {
+        final Object value;
+        final long storedAt;
+        final long expiresAt;
+
+        StoredValue(Object value, long storedAt, long expiresAt) {
+            this.value = value;
+            this.storedAt = storedAt;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isLive(long now) {
+            return expiresAt > now;
+        }
+    }
+
+    private final Map<String, StoredValue> localStorage = new ConcurrentHashMap<>();
     private static final long DEFAULT_TTL = 24 * 60 * 60 * 1000;
 
     public DhtService(
@@ -51,19 +103,66 @@ public class DhtService {
         String localPublicKey, 
         MessageParser parser,
         WebSocketSender wsSender
+    ) {
+        this(localNodeId, localAddress, localPublicKey, parser, wsSender, null, null);
+    }
+
+    /**
+     * Threading model: timers (heartbeat, maintenance, send coalescing) run on the
+     * scheduler. Inbound frames are parsed on the stripe of the peer they came from,
+     * so one peer's messages keep their order, and each message is then handled
+     * on the stripe owning its key (value key, lookup target or sending peer),
+     * so work for one key is serialized while different keys run in parallel.
+     * The caller of processIncomingMessage never runs DHT logic itself; it blocks
+     * while that stripe's queue is full.
+     *
+     * @param sharedScheduler timer scheduler shared between many services (e.g. the simulator);
+     *                        null gives this service its own thread
+     * @param sharedWorkers   inbound workers shared between many services; null gives this
+     *                        service one stripe per core
+     */
+    public DhtService(
+        String localNodeId, 
+        InetSocketAddress localAddress, 
+        String localPublicKey, 
+        MessageParser parser,
+        WebSocketSender wsSender,
+        ScheduledExecutorService sharedScheduler,
+        StripedExecutor sharedWorkers
     ) {
         this.localNode = new KademliaNode(localNodeId, localAddress, localPublicKey);
         this.routingTable = new RoutingTable(localNodeId);
         this.parser = parser;
-        this.wsSender = wsSender;
+        this.ownsScheduler = sharedScheduler == null;
+        this.scheduler = ownsScheduler ? Executors.newSingleThreadScheduledExecutor() : sharedScheduler;
+        this.ownsWorkers = sharedWorkers == null;
+        this.workers = ownsWorkers ? new StripedExecutor(Runtime.getRuntime().availableProcessors()) : sharedWorkers;
+        this.transport = new CoalescingTransport(wsSender, scheduler, this::onSendFailure,
+            COALESCE_TICK_MS, COALESCE_MAX_MESSAGES, COALESCE_MAX_BYTES);
         startBackgroundTasks();
     }
     
     private void startBackgroundTasks() {
-        scheduler.scheduleAtFixedRate(this::sendHeartbeat, 0, HEARTBEAT_INTERVAL_SECONDS, TimeUnit.SECONDS);
-        scheduler.scheduleAtFixedRate(this::performRoutingMaintenance, 
-                                      HEARTBEAT_INTERVAL_SECONDS + 5, HEARTBEAT_INTERVAL_SECONDS + 5, TimeUnit.SECONDS);
-        scheduler.scheduleAtFixedRate(this::cleanupExpiredValues, 1, 60, TimeUnit.MINUTES);
+        backgroundTasks.add(scheduler.scheduleAtFixedRate(this::sendHeartbeat, 0, HEARTBEAT_INTERVAL_SECONDS, TimeUnit.SECONDS));
+        backgroundTasks.add(scheduler.scheduleAtFixedRate(this::performRoutingMaintenance, 
+                                      HEARTBEAT_INTERVAL_SECONDS + 5, HEARTBEAT_INTERVAL_SECONDS + 5, TimeUnit.SECONDS));
+        backgroundTasks.add(scheduler.scheduleAtFixedRate(this::cleanupExpiredValues, 1, 60, TimeUnit.MINUTES));
+    }
+
+    /**
+     * Join the overlay through the given seeds and look up our own id so the
+     * nodes closest to us learn about us (and we about them). Calling it again
+     * with no seeds runs another refresh round.
+     */
+    public void bootstrap(List<KademliaNode> seeds) {
+        for (KademliaNode seed : seeds) {
+            routingTable.insertNode(seed);
+        }
+        sendFindNode(localNode.getNodeId());
+    }
+
+    public void setDeliveryListener(DeliveryListener listener) {
+        this.deliveryListener = listener;
     }
     
     
@@ -73,7 +172,7 @@ public class DhtService {
             String heartbeatJson = parser.buildMessage(MessageTypes.HEARTBEAT, localNode.getNodeId(), "*", payload);
             List<KademliaNode> neighbors = routingTable.findKNearest(localNode.getNodeId());
             for (KademliaNode neighbor : neighbors) {
-                wsSender.sendToPeer(neighbor.getNodeId(), heartbeatJson);
+                transport.send(neighbor.getNodeId(), heartbeatJson);
             }
         } catch (Exception e) {
             System.err.println("[DHT Error] Failed to send HEARTBEAT: " + e.getMessage());
@@ -81,13 +180,20 @@ public class DhtService {
     }
     
     private void performRoutingMaintenance() {
-        long timeoutCutoff = System.currentTimeMillis() - (NODE_TIMEOUT_SECONDS * 1000L);
+        long now = System.currentTimeMillis();
+        long timeoutCutoff = now - (NODE_TIMEOUT_SECONDS * 1000L);
+        long heartbeatCutoff = now - (HEARTBEAT_INTERVAL_SECONDS * 1000L);
         int removedCount = 0;
         
         for (KademliaNode node : routingTable.getOnlineMembers()) {
             if (node.getLastSeenTimestamp() < timeoutCutoff) {
                 routingTable.removeNode(node.getNodeId());
+                routeStats.remove(node.getNodeId());
+                transport.removePeer(node.getNodeId());
                 removedCount++;
+            } else if (node.getLastSeenTimestamp() < heartbeatCutoff) {
+                // Missed a heartbeat round, count it against the route
+                routeStatsFor(node.getNodeId()).recordFailure();
             }
         }
         
@@ -98,22 +204,84 @@ public class DhtService {
     
     private void sendFindNode(String targetId) {
         try {
+            // request_id is only used to time the answers, no callback is waiting on it
+            long requestId = requestIdCounter.incrementAndGet();
             Map<String, Object> payload = new HashMap<>();
             payload.put("target_id", targetId); 
+            payload.put("request_id", requestId);
+            payload.put("sender", localNode.toPayloadMap());
             String findNodeJson = parser.buildMessage(MessageTypes.FIND_NODE, localNode.getNodeId(), targetId, payload);
-            List<KademliaNode> neighbors = routingTable.findKNearest(targetId);
-            for (KademliaNode neighbor : neighbors) {
-                wsSender.sendToPeer(neighbor.getNodeId(), findNodeJson);
-            }
+            sendRequest(requestId, findNodeJson, routingTable.findKNearest(targetId));
         } catch (Exception e) {
             System.err.println("[DHT Error] Failed to send FIND_NODE: " + e.getMessage());
         }
     }
 
+    /**
+     * Accepts a single SOCP message or a batched frame (JSON array of messages)
+     * produced by a peer's CoalescingTransport
+     */
     public void processIncomingMessage(String rawJson) {
+        processIncomingMessage(null, rawJson);
+    }
+
+    /**
+     * @param peerId the peer or connection the frame arrived from, its frames are parsed
+     *               in order; without it frames are parsed on any stripe and may overtake
+     *               each other
+     */
+    public void processIncomingMessage(String peerId, String rawJson) {
+        // Parsing touches no DHT state, but must keep the peer's order until each message reaches its key stripe
+        Runnable parse = () -> {
+            if (!rawJson.isEmpty() && rawJson.charAt(0) == '[') {
+                try {
+                    for (JsonNode element : BATCH_MAPPER.readTree(rawJson)) {
+                        parseAndDispatch(element.toString());
+                    }
+                } catch (Exception e) {
+                    System.err.println("[DHT Error] Failed to unpack batched frame: " + e.getMessage());
+                }
+            } else {
+                parseAndDispatch(rawJson);
+            }
+        };
+        if (peerId != null) {
+            workers.execute(peerId, parse);
+        } else {
+            workers.execute(parse);
+        }
+    }
+
+    private void parseAndDispatch(String rawJson) {
+        Message msg;
         try {
-            Message msg = parser.parseJson(rawJson);
-            
+            msg = parser.parseJson(rawJson);
+        } catch (Exception e) {
+            System.err.println("[DHT Error] Failed to process incoming message: " + e.getMessage());
+            return;
+        }
+
+        // 多路径转发会带来重复副本，同一个 (from, nonce) 只处理一次
+        if (msg.getNonce() != null && !seenMessages.markSeen(msg.getFrom(), msg.getNonce())) {
+            return;
+        }
+        workers.execute(stripeKey(msg), () -> handleMessage(msg));
+    }
+
+    private Object stripeKey(Message msg) {
+        Object key = null;
+        if (msg.getType().equals(MessageTypes.STORE_VALUE) || msg.getType().equals(MessageTypes.FIND_VALUE)) {
+            key = msg.getPayload().get("key");
+        } else if (msg.getType().equals(MessageTypes.FIND_NODE)) {
+            key = msg.getPayload().get("target_id");
+        }
+        return key != null ? key : String.valueOf(msg.getFrom());
+    }
+
+    private void handleMessage(Message msg) {
+        try {
+            // 路由发现类消息由 DHT 自己消费，不交给 DeliveryListener
+            boolean consumed = true;
             // 处理消息类型
             if (msg.getType().equals(MessageTypes.HEARTBEAT)) {
                 handleHeartbeat(msg);
@@ -140,14 +308,21 @@ public class DhtService {
             } else if (msg.getType().equals(MessageTypes.VALUE_RESPONSE)) {
                 handleValueResponse(msg);
                 return;
+            } else {
+                consumed = false;
             }
             
             // 路由转发
             if (!msg.getTo().equals(localNode.getNodeId()) && !msg.getTo().equals("*")) {
                 forwardMessage(msg);
+            } else if (!consumed && msg.getTo().equals(localNode.getNodeId())) {
+                DeliveryListener listener = deliveryListener;
+                if (listener != null) {
+                    listener.onDeliver(msg);
+                }
             }
         } catch (Exception e) {
-            System.err.println("[DHT Error] Failed to process incoming message: " + e.getMessage());
+            System.err.println("[DHT Error] Failed to handle " + msg.getType() + ": " + e.getMessage());
         }
     }
     
@@ -157,6 +332,13 @@ public class DhtService {
             String requesterId = msg.getFrom();
             if (targetId == null) return;
 
+            // Requesters include their own contact so the nodes they ask learn about them
+            @SuppressWarnings("unchecked")
+            Map<String, Object> sender = (Map<String, Object>) msg.getPayload().get("sender");
+            if (sender != null && requesterId.equals(sender.get("user_id"))) {
+                processNodeDiscoveryPayload(sender, "user_id");
+            }
+
             List<KademliaNode> nearestNodes = routingTable.findKNearest(targetId);
             List<Map<String, Object>> nodesPayload = nearestNodes.stream()
                 .map(KademliaNode::toPayloadMap)
@@ -165,19 +347,23 @@ public class DhtService {
             Map<String, Object> responsePayload = new HashMap<>();
             responsePayload.put("nodes", nodesPayload);
             responsePayload.put("target_id", targetId);
+            Long requestId = asLong(msg.getPayload().get("request_id"));
+            if (requestId != null) responsePayload.put("request_id", requestId);
             
             String responseJson = parser.buildMessage(MessageTypes.FIND_NODE_RESP, localNode.getNodeId(), requesterId, responsePayload);
-            wsSender.sendToPeer(requesterId, responseJson);
+            transport.send(requesterId, responseJson);
         } catch (Exception e) {
             System.err.println("[DHT Error] Failed to process FIND_NODE: " + e.getMessage());
         }
     }
     
     private void handleFindNodeResponse(Message msg) {
+        recordRouteSuccess(msg.getFrom());
         try {
             @SuppressWarnings("unchecked")
             List<Map<String, Object>> nodes = (List<Map<String, Object>>) msg.getPayload().get("nodes");
-            Long requestId = (Long) msg.getPayload().get("request_id");
+            Long requestId = asLong(msg.getPayload().get("request_id"));
+            recordResponse(requestId, msg.getFrom());
             
             if (nodes != null) {
                 for (Map<String, Object> nodePayload : nodes) {
@@ -207,20 +393,107 @@ public class DhtService {
         msg.getPayload().put("ttl", currentTtl - 1);
         String targetId = msg.getTo();
         
-        List<KademliaNode> nextHops = routingTable.findKNearest(targetId).stream()
+        List<KademliaNode> candidates = routingTable.findKNearest(targetId).stream()
             .filter(node -> !node.getNodeId().equals(msg.getFrom()))
-            .limit(MULTIPATH_FORWARD_COUNT)
             .collect(Collectors.toList());
 
-        if (nextHops.isEmpty()) return;
+        if (candidates.isEmpty()) return;
 
+        String forwardedJson;
         try {
-            String forwardedJson = parser.serialize(msg);
-            for (KademliaNode nextHop : nextHops) {
-                wsSender.sendToPeer(nextHop.getNodeId(), forwardedJson);
-            }
+            forwardedJson = parser.serialize(msg);
         } catch (Exception e) {
             System.err.println("[DHT Error] Failed to serialize message for forwarding: " + e.getMessage());
+            return;
+        }
+
+        // Fan out only as wide as needed for the combined delivery probability
+        // of the chosen routes to reach the target, never more than MULTIPATH_FORWARD_COUNT
+        double missProbability = 1.0;
+        int sent = 0;
+        for (KademliaNode nextHop : candidates) {
+            if (sent >= MULTIPATH_FORWARD_COUNT || 1.0 - missProbability >= TARGET_DELIVERY_PROBABILITY) {
+                break;
+            }
+            transport.send(nextHop.getNodeId(), forwardedJson);
+            missProbability *= 1.0 - routeStatsFor(nextHop.getNodeId()).deliveryProbability();
+            sent++;
+        }
+    }
+
+    /**
+     * Send one request to several peers and time it: each answer gives that peer an
+     * RTT sample, and the request expires after the slowest peer's RPC timeout
+     */
+    private void sendRequest(long requestId, String json, List<KademliaNode> peers) {
+        InFlightRequest request = new InFlightRequest();
+        long timeoutMs = 0;
+        for (KademliaNode peer : peers) {
+            request.awaiting.add(peer.getNodeId());
+            timeoutMs = Math.max(timeoutMs, peer.getRpcTimeoutMs());
+        }
+        inFlightRequests.put(requestId, request);
+
+        for (KademliaNode peer : peers) {
+            transport.send(peer.getNodeId(), json);
+        }
+
+        try {
+            // The coalescing tick delays the request by up to one tick on each side
+            request.timeout = scheduler.schedule(() -> workers.execute(() -> expireRequest(requestId)),
+                timeoutMs + 2 * COALESCE_TICK_MS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            inFlightRequests.remove(requestId); // shutting down
+        }
+    }
+
+    private void recordResponse(Long requestId, String peerId) {
+        if (requestId == null || peerId == null) return;
+        InFlightRequest request = inFlightRequests.get(requestId);
+        if (request == null || !request.awaiting.remove(peerId)) return;
+
+        KademliaNode peer = routingTable.getNode(peerId);
+        if (peer != null) {
+            peer.recordRtt((System.nanoTime() - request.sentAtNanos) / 1_000_000.0);
+        }
+        if (request.awaiting.isEmpty() && inFlightRequests.remove(requestId, request)) {
+            ScheduledFuture<?> timeout = request.timeout;
+            if (timeout != null) timeout.cancel(false);
+        }
+    }
+
+    private void expireRequest(long requestId) {
+        InFlightRequest request = inFlightRequests.remove(requestId);
+        if (request == null) return;
+
+        for (String peerId : request.awaiting) {
+            if (routingTable.getNode(peerId) != null) {
+                routeStatsFor(peerId).recordFailure();
+            }
+        }
+
+        NodeLookupCallback nodeCallback = pendingNodeLookups.remove(requestId);
+        if (nodeCallback != null) {
+            nodeCallback.onFailure("Lookup timed out");
+        }
+        ValueLookupCallback valueCallback = pendingValueLookups.remove(requestId);
+        if (valueCallback != null) {
+            valueCallback.onFailure("Value lookup timed out");
+        }
+    }
+
+    private void onSendFailure(String peerId, Exception e) {
+        routeStatsFor(peerId).recordFailure();
+        System.err.println("[DHT Error] Failed to send to " + peerId + ": " + e.getMessage());
+    }
+
+    private RouteStats routeStatsFor(String nodeId) {
+        return routeStats.computeIfAbsent(nodeId, id -> new RouteStats());
+    }
+
+    private void recordRouteSuccess(String nodeId) {
+        if (nodeId != null && routingTable.getNode(nodeId) != null) {
+            routeStatsFor(nodeId).recordSuccess();
         }
     }
     
@@ -229,6 +502,7 @@ public class DhtService {
         KademliaNode existingNode = routingTable.getNode(nodeId);
         if (existingNode != null) {
             existingNode.markAsAlive();
+            routeStatsFor(nodeId).recordSuccess();
         } 
     }
     
@@ -251,6 +525,8 @@ public class DhtService {
             String userId = (String) msg.getPayload().get("user_id");
             if (userId != null) {
                 routingTable.removeNode(userId);
+                routeStats.remove(userId);
+                transport.removePeer(userId);
             }
         } catch (Exception e) {
             System.err.println("[DHT Error] Failed to process USER_REMOVE: " + e.getMessage());
@@ -301,12 +577,10 @@ public class DhtService {
             payload.put("target_id", targetId);
             payload.put("request_id", requestId);
             payload.put("lookup_type", "node");
+            payload.put("sender", localNode.toPayloadMap());
             
             String findNodeJson = parser.buildMessage(MessageTypes.FIND_NODE, localNode.getNodeId(), targetId, payload);
-            List<KademliaNode> neighbors = routingTable.findKNearest(targetId);
-            for (KademliaNode neighbor : neighbors) {
-                wsSender.sendToPeer(neighbor.getNodeId(), findNodeJson);
-            }
+            sendRequest(requestId, findNodeJson, routingTable.findKNearest(targetId));
         } catch (Exception e) {
             pendingNodeLookups.remove(requestId);
             callback.onFailure("Failed to initiate lookup: " + e.getMessage());
@@ -320,8 +594,8 @@ public class DhtService {
     
     public void dhtInsert(String key, Object value, long ttl) {
         try {
-            localStorage.put(key, value);
-            valueExpiry.put(key, System.currentTimeMillis() + ttl);
+            long now = System.currentTimeMillis();
+            localStorage.put(key, new StoredValue(value, now, now + ttl));
             
             String hashedKey = hashKey(key);
             Map<String, Object> storePayload = new HashMap<>();
@@ -335,7 +609,7 @@ public class DhtService {
             routingTable.findKNearest(hashedKey).stream()
                 .filter(node -> !node.getNodeId().equals(localNode.getNodeId()))
                 .limit(3)
-                .forEach(node -> wsSender.sendToPeer(node.getNodeId(), storeJson));
+                .forEach(node -> transport.send(node.getNodeId(), storeJson));
                 
         } catch (Exception e) {
             System.err.println("[DHT Error] Failed to store value: " + e.getMessage());
@@ -347,10 +621,10 @@ public class DhtService {
         pendingValueLookups.put(requestId, callback);
         
         try {
-            Long expiry = valueExpiry.get(key);
-            if (localStorage.containsKey(key) && expiry != null && expiry > System.currentTimeMillis()) {
+            StoredValue stored = localStorage.get(key);
+            if (stored != null && stored.isLive(System.currentTimeMillis())) {
                 pendingValueLookups.remove(requestId);
-                callback.onSuccess(localStorage.get(key));
+                callback.onSuccess(stored.value);
                 return;
             }
             
@@ -362,8 +636,7 @@ public class DhtService {
             findPayload.put("lookup_type", "value");
             
             String findValueJson = parser.buildMessage(MessageTypes.FIND_VALUE, localNode.getNodeId(), hashedKey, findPayload);
-            routingTable.findKNearest(hashedKey).forEach(neighbor -> 
-                wsSender.sendToPeer(neighbor.getNodeId(), findValueJson));
+            sendRequest(requestId, findValueJson, routingTable.findKNearest(hashedKey));
                 
         } catch (Exception e) {
             pendingValueLookups.remove(requestId);
@@ -375,14 +648,15 @@ public class DhtService {
         try {
             String key = (String) msg.getPayload().get("key");
             Object value = msg.getPayload().get("value");
-            Long ttl = (Long) msg.getPayload().get("ttl");
-            Long timestamp = (Long) msg.getPayload().get("timestamp");
+            Long ttl = asLong(msg.getPayload().get("ttl"));
+            Long timestamp = asLong(msg.getPayload().get("timestamp"));
             
             if (key != null && value != null && ttl != null && timestamp != null) {
                 if (System.currentTimeMillis() > timestamp + ttl) return;
                 
-                localStorage.put(key, value);
-                valueExpiry.put(key, timestamp + ttl);
+                // Replicas can arrive out of order, keep the most recently written one
+                StoredValue incoming = new StoredValue(value, timestamp, timestamp + ttl);
+                localStorage.merge(key, incoming, (current, update) -> update.storedAt >= current.storedAt ? update : current);
             }
         } catch (Exception e) {
             System.err.println("[DHT Error] Failed to process STORE_VALUE: " + e.getMessage());
@@ -393,18 +667,18 @@ public class DhtService {
         try {
             String key = (String) msg.getPayload().get("key");
             String hashedKey = (String) msg.getPayload().get("hashed_key");
-            Long requestId = (Long) msg.getPayload().get("request_id");
+            Long requestId = asLong(msg.getPayload().get("request_id"));
             String requesterId = msg.getFrom();
             
             if (key == null) return;
             
             Map<String, Object> responsePayload = new HashMap<>();
-            Long expiry = valueExpiry.get(key);
+            StoredValue stored = localStorage.get(key);
             
-            if (localStorage.containsKey(key) && expiry != null && expiry > System.currentTimeMillis()) {
+            if (stored != null && stored.isLive(System.currentTimeMillis())) {
                 responsePayload.put("found", true);
                 responsePayload.put("key", key);
-                responsePayload.put("value", localStorage.get(key));
+                responsePayload.put("value", stored.value);
             } else {
                 responsePayload.put("found", false);
                 List<Map<String, Object>> nodesPayload = routingTable.findKNearest(hashedKey).stream()
@@ -416,7 +690,7 @@ public class DhtService {
             if (requestId != null) responsePayload.put("request_id", requestId);
             
             String responseJson = parser.buildMessage(MessageTypes.VALUE_RESPONSE, localNode.getNodeId(), requesterId, responsePayload);
-            wsSender.sendToPeer(requesterId, responseJson);
+            transport.send(requesterId, responseJson);
             
         } catch (Exception e) {
             System.err.println("[DHT Error] Failed to process FIND_VALUE: " + e.getMessage());
@@ -424,9 +698,11 @@ public class DhtService {
     }
 
     private void handleValueResponse(Message msg) {
+        recordRouteSuccess(msg.getFrom());
         try {
             Boolean found = (Boolean) msg.getPayload().get("found");
-            Long requestId = (Long) msg.getPayload().get("request_id");
+            Long requestId = asLong(msg.getPayload().get("request_id"));
+            recordResponse(requestId, msg.getFrom());
             
             if (requestId != null) {
                 ValueLookupCallback callback = pendingValueLookups.remove(requestId);
@@ -445,14 +721,12 @@ public class DhtService {
 
     private void cleanupExpiredValues() {
         long now = System.currentTimeMillis();
-        Iterator<Map.Entry<String, Long>> iterator = valueExpiry.entrySet().iterator();
-        while (iterator.hasNext()) {
-            Map.Entry<String, Long> entry = iterator.next();
-            if (entry.getValue() < now) {
-                localStorage.remove(entry.getKey());
-                iterator.remove();
-            }
-        }
+        localStorage.values().removeIf(stored -> !stored.isLive(now));
+    }
+
+    // Jackson hands back Integer for small numbers, so never cast payload numbers to Long directly
+    private static Long asLong(Object value) {
+        return value instanceof Number ? ((Number) value).longValue() : null;
     }
 
     private String hashKey(String key) {
@@ -494,7 +768,35 @@ public class DhtService {
         return routingTable;
     }
 
+    // Transport counters: messages handed to the transport vs frames actually sent
+    public long getMessagesSent() {
+        return transport.getMessagesSent();
+    }
+
+    public long getFramesSent() {
+        return transport.getFramesSent();
+    }
+
+    public double getBatchFactor() {
+        return transport.getBatchFactor();
+    }
+
     public void shutdown() {
+        transport.flushAll();
+        for (ScheduledFuture<?> task : backgroundTasks) {
+            task.cancel(false);
+        }
+        for (InFlightRequest request : inFlightRequests.values()) {
+            ScheduledFuture<?> timeout = request.timeout;
+            if (timeout != null) timeout.cancel(false);
+        }
+        inFlightRequests.clear();
+        if (ownsWorkers) {
+            workers.shutdown();
+        }
+        if (!ownsScheduler) {
+            return;
+        }
         scheduler.shutdown();
         try {
             if (!scheduler.awaitTermination(5, TimeUnit.SECONDS)) {
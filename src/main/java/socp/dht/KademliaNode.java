@@ -7,10 +7,19 @@ import java.util.Map;
 
 public class KademliaNode {
 
+    // RTT estimator constants as in TCP (RFC 6298)
+    private static final double RTT_ALPHA = 0.125;
+    private static final double RTT_BETA = 0.25;
+    private static final long INITIAL_RPC_TIMEOUT_MS = 1000;
+    private static final long MIN_RPC_TIMEOUT_MS = 200;
+    private static final long MAX_RPC_TIMEOUT_MS = 10000;
+
     private final String nodeId; 
     private final InetSocketAddress address; 
     private final String publicKey; 
-    private long lastSeenTimestamp; 
+    private volatile long lastSeenTimestamp; // written by heartbeat handling, read by maintenance
+    private double srttMs = -1; // smoothed RTT, -1 until the first sample
+    private double rttVarMs;
     
 
     public KademliaNode(String nodeId, InetSocketAddress address, String publicKey) {
@@ -32,6 +41,39 @@ public class KademliaNode {
     }
 
 
+    /**
+     * Feed one request/response round-trip sample into the EWMA and variance
+     */
+    public synchronized void recordRtt(double sampleMs) {
+        if (srttMs < 0) {
+            srttMs = sampleMs;
+            rttVarMs = sampleMs / 2;
+        } else {
+            rttVarMs = (1 - RTT_BETA) * rttVarMs + RTT_BETA * Math.abs(srttMs - sampleMs);
+            srttMs = (1 - RTT_ALPHA) * srttMs + RTT_ALPHA * sampleMs;
+        }
+    }
+
+    public synchronized boolean hasRttEstimate() {
+        return srttMs >= 0;
+    }
+
+    /**
+     * Smoothed RTT; peers never measured sort after measured ones
+     */
+    public synchronized double getRttEstimateMs() {
+        return srttMs >= 0 ? srttMs : Double.MAX_VALUE;
+    }
+
+    public synchronized long getRpcTimeoutMs() {
+        if (srttMs < 0) {
+            return INITIAL_RPC_TIMEOUT_MS;
+        }
+        long rto = (long) Math.ceil(srttMs + 4 * rttVarMs);
+        return Math.max(MIN_RPC_TIMEOUT_MS, Math.min(MAX_RPC_TIMEOUT_MS, rto));
+    }
+
+
     public int calculateDistance(String targetId) {
         return nodeId.compareTo(targetId); 
     }
@@ -0,0 +1,33 @@
+package socp.dht;
+
+/**
+ * Delivery history of a single next hop, kept as an EWMA of success samples.
+ * New routes start at a neutral prior so they get full multipath fan-out
+ * until they have shown how reliable they are.
+ */
+class RouteStats {
+
+    private static final double ALPHA = 0.2;
+    private static final double INITIAL_PROBABILITY = 0.5;
+
+    private double deliveryProbability = INITIAL_PROBABILITY;
+    private long successes;
+    private long failures;
+
+    synchronized void recordSuccess() {
+        successes++;
+        deliveryProbability += ALPHA * (1.0 - deliveryProbability);
+    }
+
+    synchronized void recordFailure() {
+        failures++;
+        deliveryProbability -= ALPHA * deliveryProbability;
+    }
+
+    synchronized double deliveryProbability() {
+        return deliveryProbability;
+    }
+
+    synchronized long getSuccesses() { return successes; }
+    synchronized long getFailures() { return failures; }
+}
@@ -10,7 +10,7 @@ public class RoutingTable {
     private final String localNodeId;
     private final Map<String, KademliaNode> nodes = new ConcurrentHashMap<>();
     
-    private static final int K = 5; 
+    public static final int K = 5; 
 
     public RoutingTable(String localNodeId) {
         this.localNodeId = localNodeId;
@@ -22,7 +22,17 @@ public class RoutingTable {
             return;
         }
         
-        nodes.put(node.getNodeId(), node);
+        // Atomic per key: a re-announced contact keeps its existing node object
+        // (and the state on it), a changed address or key replaces it
+        nodes.compute(node.getNodeId(), (id, existing) -> {
+            if (existing != null
+                    && existing.getAddress().equals(node.getAddress())
+                    && existing.getPublicKey().equals(node.getPublicKey())) {
+                existing.markAsAlive();
+                return existing;
+            }
+            return node;
+        });
     }
 
 
@@ -39,7 +49,9 @@ public class RoutingTable {
 
         return nodes.values().stream()
                 .filter(node -> !node.getNodeId().equals(localNodeId))
-                .sorted(Comparator.comparingInt(node -> Math.abs(node.calculateDistance(targetId))))
+                // Among equally close nodes prefer the lowest measured RTT
+                .sorted(Comparator.<KademliaNode>comparingInt(node -> Math.abs(node.calculateDistance(targetId)))
+                        .thenComparingDouble(KademliaNode::getRttEstimateMs))
                 .limit(K)
                 .collect(Collectors.toList());
     }
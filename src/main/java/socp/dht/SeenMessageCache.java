@@ -0,0 +1,81 @@
+package socp.dht;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded record of (from, nonce) pairs this node has already handled.
+ * Multipath forwarding delivers several copies of the same message, only the
+ * first one is processed or forwarded again.
+ *
+ * Split into independently locked segments so inbound workers do not all
+ * contend on one lock.
+ */
+class SeenMessageCache {
+
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    SeenMessageCache(int maxEntries, long maxAgeMs) {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(Math.max(1, maxEntries / SEGMENTS), maxAgeMs);
+        }
+    }
+
+    /**
+     * @return true the first time a (from, nonce) pair is seen, false for duplicates
+     */
+    boolean markSeen(String from, String nonce) {
+        String key = from + '\u0000' + nonce;
+        return segments[Math.floorMod(key.hashCode(), SEGMENTS)].markSeen(key);
+    }
+
+    int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    private static class Segment {
+        private final int maxEntries;
+        private final long maxAgeMs;
+        private final LinkedHashMap<String, Long> seen = new LinkedHashMap<>();
+
+        Segment(int maxEntries, long maxAgeMs) {
+            this.maxEntries = maxEntries;
+            this.maxAgeMs = maxAgeMs;
+        }
+
+        synchronized boolean markSeen(String key) {
+            long now = System.currentTimeMillis();
+            evict(now);
+
+            if (seen.containsKey(key)) {
+                return false;
+            }
+            seen.put(key, now);
+            return true;
+        }
+
+        synchronized int size() {
+            return seen.size();
+        }
+
+        // Entries are in insertion order, so the oldest ones are always at the head
+        private void evict(long now) {
+            Iterator<Map.Entry<String, Long>> it = seen.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Long> eldest = it.next();
+                if (seen.size() >= maxEntries || now - eldest.getValue() > maxAgeMs) {
+                    it.remove();
+                } else {
+                    break;
+                }
+            }
+        }
+    }
+}
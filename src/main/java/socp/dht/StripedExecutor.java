@@ -0,0 +1,157 @@
+package socp.dht;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed set of single-threaded workers. Tasks submitted with the same key always
+ * run on the same worker, so they execute in submission order and never
+ * concurrently; different keys spread across cores.
+ *
+ * A thread feeding messages in may have at most QUEUE_CAPACITY tasks waiting on a
+ * stripe and blocks until there is room, which pushes back on it. Work a worker
+ * hands to another stripe is always queued, never dropped or waited for: waiting
+ * could deadlock two stripes, and running it here would break the per-key
+ * ordering. Its volume follows from the fed tasks it came from. One instance can
+ * be shared by many DhtService instances.
+ */
+public class StripedExecutor {
+
+    private static final int QUEUE_CAPACITY = 10_000;
+
+    private final ThreadPoolExecutor[] stripes;
+    // Room left for tasks fed in from outside, per stripe
+    private final Semaphore[] room;
+    private final ThreadLocal<Integer> currentStripe = new ThreadLocal<>();
+    private final AtomicInteger roundRobin = new AtomicInteger();
+    private final LongAdder dropped = new LongAdder();
+
+    public StripedExecutor(int threads) {
+        this.stripes = new ThreadPoolExecutor[Math.max(1, threads)];
+        this.room = new Semaphore[stripes.length];
+        for (int i = 0; i < stripes.length; i++) {
+            final int index = i;
+            room[i] = new Semaphore(QUEUE_CAPACITY);
+            stripes[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(),
+                r -> {
+                    Thread t = new Thread(() -> {
+                        currentStripe.set(index);
+                        r.run();
+                    }, "dht-worker-" + index);
+                    t.setDaemon(true);
+                    return t;
+                },
+                new Rejected());
+        }
+    }
+
+    /**
+     * Run on the stripe owning this key; runs inline if we are already on it
+     */
+    public void execute(Object key, Runnable task) {
+        int index = Math.floorMod(key.hashCode(), stripes.length);
+        Integer current = currentStripe.get();
+        if (current != null && current == index) {
+            task.run();
+        } else {
+            submit(index, task);
+        }
+    }
+
+    /**
+     * Run on any stripe, for work that touches no keyed state (e.g. parsing)
+     */
+    public void execute(Runnable task) {
+        submit(Math.floorMod(roundRobin.getAndIncrement(), stripes.length), task);
+    }
+
+    private void submit(int index, Runnable task) {
+        if (currentStripe.get() != null) {
+            stripes[index].execute(task);
+            return;
+        }
+        try {
+            room[index].acquire();
+        } catch (InterruptedException e) {
+            dropped.increment();
+            Thread.currentThread().interrupt();
+            return;
+        }
+        stripes[index].execute(new Fed(room[index], task));
+    }
+
+    /**
+     * True when no stripe has queued or running work (a snapshot, not a guarantee)
+     */
+    public boolean isIdle() {
+        for (ThreadPoolExecutor stripe : stripes) {
+            if (!stripe.getQueue().isEmpty() || stripe.getActiveCount() > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Tasks submitted after shutdown, or by a feeder interrupted while waiting for room
+     */
+    public long getDroppedTasks() {
+        return dropped.sum();
+    }
+
+    public int getThreadCount() {
+        return stripes.length;
+    }
+
+    // A task fed in from outside, gives its room back once it leaves the queue
+    private static class Fed implements Runnable {
+        final Semaphore room;
+        final Runnable task;
+
+        Fed(Semaphore room, Runnable task) {
+            this.room = room;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            room.release();
+            task.run();
+        }
+    }
+
+    // Queues are unbounded, so only a stripe that is shut down rejects
+    private class Rejected implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor stripe) {
+            if (task instanceof Fed) {
+                ((Fed) task).room.release();
+            }
+            dropped.increment();
+        }
+    }
+
+    public void shutdown() {
+        for (ThreadPoolExecutor stripe : stripes) {
+            stripe.shutdown();
+        }
+        try {
+            for (ThreadPoolExecutor stripe : stripes) {
+                if (!stripe.awaitTermination(5, TimeUnit.SECONDS)) {
+                    stripe.shutdownNow();
+                }
+            }
+        } catch (InterruptedException e) {
+            for (ThreadPoolExecutor stripe : stripes) {
+                stripe.shutdownNow();
+            }
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package socp.dht.sim;
+
+import socp.Message;
+import socp.MessageParser;
+import socp.MessageTypes;
+import socp.dht.DhtService;
+import socp.dht.KademliaNode;
+import socp.dht.RoutingTable;
+import socp.dht.StripedExecutor;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Scalability harness for socp.dht: runs many DhtService instances in one JVM
+ * over an InMemoryNetwork and reports convergence, lookup and memory figures.
+ *
+ * Usage:
+ *   mvn exec:java -Dexec.mainClass=socp.dht.sim.DhtSimulator \
+ *       -Dexec.args="--nodes=1000 --latency-ms=5 --jitter-ms=5 --loss=0.01 --churn=0.02 --lookups=500"
+ *
+ * A lookup is a MSG_DIRECT routed from a random node to another random node
+ * through forwardMessage; hops, latency and link transmissions are measured per lookup.
+ *
+ * --mode=throughput instead measures how many FIND_NODE requests a single node
+ * answers per second with 1, 2, 4... worker stripes (--threads=1,2,4,8).
+ */
+public class DhtSimulator {
+
+    private final Map<String, String> options;
+    private final Random random;
+
+    private final List<DhtService> services = new ArrayList<>();
+    private final Map<String, KademliaNode> contacts = new HashMap<>();
+    private final Map<String, Long> lookupStart = new ConcurrentHashMap<>();
+    private final Map<String, long[]> lookupResult = new ConcurrentHashMap<>(); // nonce -> {latencyNanos, hops}
+
+    private InMemoryNetwork network;
+    private ScheduledExecutorService timers;
+    private StripedExecutor workers;
+
+    DhtSimulator(Map<String, String> options) {
+        this.options = options;
+        this.random = new Random(longOpt("seed", 42));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) continue;
+            String[] kv = arg.substring(2).split("=", 2);
+            options.put(kv[0], kv.length > 1 ? kv[1] : "true");
+        }
+        DhtSimulator simulator = new DhtSimulator(options);
+        if ("throughput".equals(options.get("mode"))) {
+            simulator.runThroughput();
+        } else {
+            simulator.run();
+        }
+    }
+
+    void run() throws Exception {
+        int nodeCount = (int) longOpt("nodes", 500);
+        int lookups = (int) longOpt("lookups", 500);
+        int maxRounds = (int) longOpt("max-rounds", 20);
+        double churn = doubleOpt("churn", 0.0);
+        long churnIntervalMs = longOpt("churn-interval-ms", 1000);
+
+        network = new InMemoryNetwork(doubleOpt("latency-ms", 5), doubleOpt("jitter-ms", 5),
+            doubleOpt("loss", 0.0), longOpt("seed", 42), Runtime.getRuntime().availableProcessors());
+        timers = newTimers();
+        workers = new StripedExecutor(Runtime.getRuntime().availableProcessors());
+        MessageParser parser = new MessageParser("socp.json");
+
+        System.out.println("[SIM] nodes=" + nodeCount + " " + describeLinks());
+
+        long heapBefore = usedHeap();
+        createNodes(nodeCount, parser);
+
+        // 1. Join + refresh rounds until every routing table holds its true K nearest
+        long joinStart = System.nanoTime();
+        for (int i = 1; i < services.size(); i++) {
+            DhtService seed = services.get(random.nextInt(i));
+            services.get(i).bootstrap(Collections.singletonList(contacts.get(seed.getLocalNodeId())));
+        }
+        network.awaitQuiescence(60_000, workers::isIdle);
+        int rounds = 1;
+        double converged = convergedFraction();
+        while (converged < 1.0 && rounds < maxRounds) {
+            for (DhtService service : services) {
+                service.bootstrap(Collections.emptyList());
+            }
+            network.awaitQuiescence(60_000, workers::isIdle);
+            rounds++;
+            converged = convergedFraction();
+        }
+        long convergenceMs = (System.nanoTime() - joinStart) / 1_000_000;
+        long heapAfter = usedHeap();
+
+        // 2. Routed lookups, optionally with churn running underneath
+        if (churn > 0) {
+            timers.scheduleAtFixedRate(() -> churn(churn), churnIntervalMs, churnIntervalMs, TimeUnit.MILLISECONDS);
+        }
+        long sentBefore = network.getSent();
+        runLookups(parser, lookups, longOpt("lookup-interval-ms", 2));
+        network.awaitQuiescence(60_000, workers::isIdle);
+        long lookupTraffic = network.getSent() - sentBefore;
+
+        report(nodeCount, rounds, converged, convergenceMs, (heapAfter - heapBefore) / nodeCount, lookups, lookupTraffic);
+
+        for (DhtService service : services) {
+            service.shutdown();
+        }
+        timers.shutdownNow();
+        workers.shutdown();
+        network.shutdown();
+    }
+
+    void runThroughput() throws Exception {
+        int contacts = (int) longOpt("contacts", 1000);
+        int requests = (int) longOpt("requests", 20000);
+        String[] threadCounts = options.getOrDefault("threads", "1,2,4,8").split(",");
+        MessageParser parser = new MessageParser("socp.json");
+        timers = newTimers();
+
+        System.out.println("[SIM] throughput: " + requests + " FIND_NODE requests, " + contacts
+            + " contacts, " + Runtime.getRuntime().availableProcessors() + " cores");
+
+        // Same request set for every run, built up front so only the node's own work is timed
+        List<String> batch = new ArrayList<>();
+        for (int i = 0; i < requests; i++) {
+            Map<String, Object> payload = new HashMap<>();
+            payload.put("target_id", String.format("%016x", random.nextLong()));
+            batch.add(parser.buildMessage(MessageTypes.FIND_NODE, "requester-" + i, "bench-node", payload));
+        }
+
+        // First pass only warms up the JIT so the single-thread figure is not penalised
+        List<String> runs = new ArrayList<>();
+        runs.add(threadCounts[threadCounts.length - 1]);
+        for (String threadCount : threadCounts) {
+            runs.add(threadCount);
+        }
+
+        for (int run = 0; run < runs.size(); run++) {
+            int threads = Integer.parseInt(runs.get(run).trim());
+            StripedExecutor stripes = new StripedExecutor(threads);
+            AtomicLong responses = new AtomicLong();
+            DhtService node = new DhtService("bench-node", InetSocketAddress.createUnresolved("10.0.0.1", 9000),
+                "bench-pubkey", parser, (peerId, json) -> responses.incrementAndGet(), timers, stripes);
+
+            List<KademliaNode> seeds = new ArrayList<>();
+            for (int i = 0; i < contacts; i++) {
+                seeds.add(new KademliaNode(String.format("%016x", random.nextLong()),
+                    InetSocketAddress.createUnresolved("10.1.0." + (i % 250), 9000), "pk-" + i));
+            }
+            node.bootstrap(seeds);
+            Thread.sleep(100);
+            long baseline = responses.get();
+
+            long start = System.nanoTime();
+            for (int i = 0; i < batch.size(); i++) {
+                node.processIncomingMessage("requester-" + i, batch.get(i));
+            }
+            while (responses.get() - baseline < requests) {
+                if (System.nanoTime() - start > TimeUnit.SECONDS.toNanos(120)) break;
+                Thread.sleep(1);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            if (run > 0) System.out.println("[SIM] threads=" + threads + ": " + String.format("%.0f", (responses.get() - baseline) / seconds)
+                + " lookups/s (" + String.format("%.2f", seconds) + " s"
+                + (stripes.getDroppedTasks() > 0 ? ", " + stripes.getDroppedTasks() + " dropped" : "") + ")");
+
+            node.shutdown();
+            stripes.shutdown();
+        }
+        timers.shutdownNow();
+    }
+
+    private static ScheduledExecutorService newTimers() {
+        return Executors.newScheduledThreadPool(2, r -> {
+            Thread t = new Thread(r, "sim-dht-timers");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private void createNodes(int nodeCount, MessageParser parser) {
+        for (int i = 0; i < nodeCount; i++) {
+            String nodeId = String.format("%016x", random.nextLong());
+            InetSocketAddress address = InetSocketAddress.createUnresolved("10.0." + (i / 250) + "." + (i % 250), 9000);
+            String pubKey = "sim-pubkey-" + i;
+
+            DhtService service = new DhtService(nodeId, address, pubKey, parser, network.senderFor(nodeId), timers, workers);
+            service.setDeliveryListener(this::onDeliver);
+            network.register(service);
+            if (random.nextDouble() < doubleOpt("slow-fraction", 0.0)) {
+                network.setAccessLatency(nodeId, doubleOpt("slow-latency-ms", 50));
+            }
+            services.add(service);
+            contacts.put(nodeId, new KademliaNode(nodeId, address, pubKey));
+        }
+    }
+
+    private void onDeliver(Message msg) {
+        Long start = lookupStart.get(msg.getNonce());
+        if (start == null || !MessageTypes.MSG_DIRECT.equals(msg.getType())) return;
+
+        Object ttl = msg.getPayload().get("ttl");
+        long hops = ttl instanceof Number ? DhtService.TTL_MAX - ((Number) ttl).longValue() : 0;
+        lookupResult.putIfAbsent(msg.getNonce(), new long[] { System.nanoTime() - start, hops });
+    }
+
+    private void runLookups(MessageParser parser, int lookups, long intervalMs) throws Exception {
+        for (int i = 0; i < lookups; i++) {
+            String from = randomOnlineNode();
+            String to = randomOnlineNode();
+            while (to.equals(from)) {
+                to = randomOnlineNode();
+            }
+
+            Map<String, Object> payload = new HashMap<>();
+            payload.put("ciphertext", "sim-lookup-" + i);
+            payload.put("sender_pub", "sim");
+            payload.put("content_sig", "sim");
+            String json = parser.buildMessage(MessageTypes.MSG_DIRECT, from, to, payload);
+            String nonce = parser.parseJson(json).getNonce();
+
+            network.track(nonce);
+            lookupStart.put(nonce, System.nanoTime());
+            network.inject(from, json);
+            if (intervalMs > 0) Thread.sleep(intervalMs);
+        }
+    }
+
+    private String randomOnlineNode() {
+        while (true) {
+            String nodeId = services.get(random.nextInt(services.size())).getLocalNodeId();
+            if (network.isOnline(nodeId)) return nodeId;
+        }
+    }
+
+    private final List<String> churnedOut = new ArrayList<>();
+
+    private synchronized void churn(double fraction) {
+        for (String nodeId : churnedOut) {
+            network.setOnline(nodeId, true);
+        }
+        churnedOut.clear();
+        int count = (int) Math.round(services.size() * fraction);
+        for (int i = 0; i < count; i++) {
+            String nodeId = services.get(random.nextInt(services.size())).getLocalNodeId();
+            network.setOnline(nodeId, false);
+            churnedOut.add(nodeId);
+        }
+    }
+
+    // A table is converged when its K nearest to self are as close as the true K nearest
+    private double convergedFraction() {
+        List<String> ids = services.stream().map(DhtService::getLocalNodeId).collect(Collectors.toList());
+        int converged = 0;
+        for (DhtService service : services) {
+            KademliaNode self = contacts.get(service.getLocalNodeId());
+            List<Integer> ideal = ids.stream()
+                .filter(id -> !id.equals(self.getNodeId()))
+                .map(id -> Math.abs(self.calculateDistance(id)))
+                .sorted()
+                .limit(RoutingTable.K)
+                .collect(Collectors.toList());
+            List<Integer> actual = service.getRoutingTable().findKNearest(self.getNodeId()).stream()
+                .map(node -> Math.abs(self.calculateDistance(node.getNodeId())))
+                .sorted()
+                .collect(Collectors.toList());
+            if (ideal.equals(actual)) converged++;
+        }
+        return (double) converged / services.size();
+    }
+
+    private void report(int nodeCount, int rounds, double converged, long convergenceMs,
+                        long bytesPerNode, int lookups, long lookupTraffic) {
+        List<Long> latencies = new ArrayList<>();
+        List<Long> hops = new ArrayList<>();
+        long transmissions = 0;
+        for (String nonce : lookupStart.keySet()) {
+            transmissions += network.transmissions(nonce);
+            long[] result = lookupResult.get(nonce);
+            if (result != null) {
+                latencies.add(result[0] / 1000);
+                hops.add(result[1]);
+            }
+        }
+        Collections.sort(latencies);
+        Collections.sort(hops);
+
+        System.out.println("[SIM] convergence: " + String.format("%.1f%%", converged * 100) + " of tables in "
+            + rounds + " rounds, " + convergenceMs + " ms");
+        System.out.println("[SIM] memory per node: ~" + (bytesPerNode / 1024) + " KB");
+        System.out.println("[SIM] lookups: " + latencies.size() + "/" + lookups + " delivered ("
+            + String.format("%.1f%%", 100.0 * latencies.size() / Math.max(1, lookups)) + ")");
+        System.out.println("[SIM] hops: avg=" + String.format("%.2f", average(hops))
+            + " p50=" + percentile(hops, 0.50) + " p99=" + percentile(hops, 0.99));
+        System.out.println("[SIM] latency: p50=" + String.format("%.2f", percentile(latencies, 0.50) / 1000.0)
+            + " ms p99=" + String.format("%.2f", percentile(latencies, 0.99) / 1000.0) + " ms");
+        System.out.println("[SIM] messages per lookup: " + String.format("%.2f", (double) transmissions / Math.max(1, lookups))
+            + " (all frames during lookups: " + lookupTraffic + ")");
+        System.out.println("[SIM] link totals: frames sent=" + network.getSent() + " delivered=" + network.getDelivered()
+            + " dropped=" + network.getDropped() + " (" + nodeCount + " nodes)");
+        long messages = services.stream().mapToLong(DhtService::getMessagesSent).sum();
+        long frames = services.stream().mapToLong(DhtService::getFramesSent).sum();
+        System.out.println("[SIM] coalescing: " + messages + " messages in " + frames + " frames, batch factor "
+            + String.format("%.2f", frames == 0 ? 0.0 : (double) messages / frames));
+    }
+
+    private String describeLinks() {
+        return "latency=" + doubleOpt("latency-ms", 5) + "ms jitter=" + doubleOpt("jitter-ms", 5)
+            + "ms slow=" + doubleOpt("slow-fraction", 0.0) + "@+" + doubleOpt("slow-latency-ms", 50)
+            + "ms loss=" + doubleOpt("loss", 0.0) + " churn=" + doubleOpt("churn", 0.0)
+            + " seed=" + longOpt("seed", 42);
+    }
+
+    private static long percentile(List<Long> sorted, double p) {
+        if (sorted.isEmpty()) return 0;
+        int index = (int) Math.ceil(p * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+    }
+
+    private static double average(List<Long> values) {
+        return values.stream().mapToLong(Long::longValue).average().orElse(0);
+    }
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    private long longOpt(String name, long defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    private double doubleOpt(String name, double defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+}
@@ -0,0 +1,176 @@
+package socp.dht.sim;
+
+import socp.dht.DhtService;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * In-JVM stand-in for the WebSocket links between DHT nodes.
+ * Every send is delivered to the target service after a configurable latency
+ * (plus jitter), may be lost, and is dropped if either end is currently offline.
+ */
+public class InMemoryNetwork {
+
+    private static final int QUIET_POLLS = 5;
+
+    private final long latencyMicros;
+    private final long jitterMicros;
+    private final double lossRate;
+    private final Random random;
+
+    private final Map<String, DhtService> nodes = new ConcurrentHashMap<>();
+    private final Set<String> offline = ConcurrentHashMap.newKeySet();
+    private final Map<String, Long> accessLatencyMicros = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService deliveryPool;
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    // nonce -> number of link transmissions, only for messages the caller asked to track
+    private final Map<String, AtomicInteger> tracked = new ConcurrentHashMap<>();
+
+    public InMemoryNetwork(double latencyMs, double jitterMs, double lossRate, long seed, int deliveryThreads) {
+        this.latencyMicros = (long) (latencyMs * 1000);
+        this.jitterMicros = (long) (jitterMs * 1000);
+        this.lossRate = lossRate;
+        this.random = new Random(seed);
+        this.deliveryPool = Executors.newScheduledThreadPool(deliveryThreads, r -> {
+            Thread t = new Thread(r, "sim-link");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public DhtService.WebSocketSender senderFor(String fromId) {
+        return (peerId, json) -> send(fromId, peerId, json);
+    }
+
+    public void register(DhtService node) {
+        nodes.put(node.getLocalNodeId(), node);
+    }
+
+    public void setOnline(String nodeId, boolean online) {
+        if (online) {
+            offline.remove(nodeId);
+        } else {
+            offline.add(nodeId);
+        }
+    }
+
+    /**
+     * Extra one-way latency on every link touching this node, e.g. a slow uplink
+     */
+    public void setAccessLatency(String nodeId, double latencyMs) {
+        accessLatencyMicros.put(nodeId, (long) (latencyMs * 1000));
+    }
+
+    public boolean isOnline(String nodeId) {
+        return !offline.contains(nodeId);
+    }
+
+    /**
+     * Hand a message straight to a node, as if its own client had submitted it
+     */
+    public void inject(String nodeId, String json) {
+        DhtService node = nodes.get(nodeId);
+        if (node != null) {
+            schedule(node, nodeId, nodeId, json, 0, false);
+        }
+    }
+
+    public void track(String nonce) {
+        tracked.put(nonce, new AtomicInteger());
+    }
+
+    public int transmissions(String nonce) {
+        AtomicInteger count = tracked.get(nonce);
+        return count == null ? 0 : count.get();
+    }
+
+    private void send(String from, String to, String json) {
+        sent.incrementAndGet();
+        if (!tracked.isEmpty()) {
+            countTracked(json);
+        }
+
+        DhtService target = nodes.get(to);
+        if (target == null || offline.contains(from) || offline.contains(to) || nextDouble() < lossRate) {
+            dropped.incrementAndGet();
+            return;
+        }
+
+        long delay = latencyMicros + accessLatencyMicros.getOrDefault(from, 0L) + accessLatencyMicros.getOrDefault(to, 0L);
+        if (jitterMicros > 0) {
+            delay += (long) (nextDouble() * jitterMicros);
+        }
+        schedule(target, from, to, json, delay, true);
+    }
+
+    private void schedule(DhtService target, String from, String to, String json, long delayMicros, boolean overLink) {
+        inFlight.incrementAndGet();
+        deliveryPool.schedule(() -> {
+            try {
+                if (!offline.contains(to)) {
+                    if (overLink) delivered.incrementAndGet();
+                    target.processIncomingMessage(from, json);
+                } else if (overLink) {
+                    dropped.incrementAndGet();
+                }
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }, delayMicros, TimeUnit.MICROSECONDS);
+    }
+
+    private synchronized double nextDouble() {
+        return random.nextDouble();
+    }
+
+    // A frame may be a batch of several messages, count every tracked nonce in it
+    private void countTracked(String json) {
+        int from = 0;
+        while ((from = json.indexOf("\"nonce\":\"", from)) >= 0) {
+            int start = from + 9;
+            int end = json.indexOf('"', start);
+            if (end < 0) return;
+            AtomicInteger count = tracked.get(json.substring(start, end));
+            if (count != null) count.incrementAndGet();
+            from = end;
+        }
+    }
+
+    /**
+     * Block until no message is queued on any link and the extra idle check
+     * (e.g. the DHT workers) holds, both for several polls in a row so that
+     * coalescing ticks and follow-up sends are not missed, or the timeout passes
+     */
+    public boolean awaitQuiescence(long timeoutMs, BooleanSupplier alsoIdle) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        int idlePolls = 0;
+        while (idlePolls < QUIET_POLLS) {
+            if (System.currentTimeMillis() > deadline) return false;
+            Thread.sleep(5);
+            idlePolls = inFlight.get() == 0 && alsoIdle.getAsBoolean() ? idlePolls + 1 : 0;
+        }
+        return true;
+    }
+
+    public long getSent() { return sent.get(); }
+    public long getDelivered() { return delivered.get(); }
+    public long getDropped() { return dropped.get(); }
+
+    public void shutdown() {
+        deliveryPool.shutdownNow();
+    }
+}
@@ -0,0 +1,174 @@
+package devserver;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CredentialStoreTest {
+    private static final int MAGIC_LENGTH = 8;
+
+    private Path dir;
+    private Path file;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        dir = Files.createTempDirectory("credentials");
+        file = dir.resolve("users.db");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    private static AuthServer.UserCredential credential(String username) {
+        byte[] salt = new byte[16];
+        byte[] hash = new byte[32];
+        for (int i = 0; i < salt.length; i++) salt[i] = (byte) (username.hashCode() + i);
+        for (int i = 0; i < hash.length; i++) hash[i] = (byte) (username.hashCode() * 31 + i);
+        return new AuthServer.UserCredential(Base64.getEncoder().encodeToString(hash), salt);
+    }
+
+    private static void assertStored(CredentialStore store, String username) throws IOException {
+        AuthServer.UserCredential expected = credential(username);
+        AuthServer.UserCredential actual = store.get(username);
+        assertNotNull(actual, username);
+        assertEquals(expected.hashedPassword, actual.hashedPassword);
+        assertArrayEquals(expected.salt, actual.salt);
+    }
+
+    @Test
+    void keepsAccountsAcrossRestarts() throws IOException {
+        CredentialStore store = CredentialStore.open(file, 0);
+        assertTrue(store.putIfAbsent("alice", credential("alice")));
+        assertTrue(store.putIfAbsent("bob", credential("bob")));
+        assertFalse(store.putIfAbsent("alice", credential("bob")));
+        assertStored(store, "alice");
+        assertNull(store.get("charlie"));
+
+        CredentialStore reopened = CredentialStore.open(file, 0);
+        assertEquals(2, reopened.size());
+        assertStored(reopened, "alice");
+        assertStored(reopened, "bob");
+        assertFalse(reopened.putIfAbsent("bob", credential("bob")));
+    }
+
+    @Test
+    void dropsTornRecordAtTheEnd() throws IOException {
+        CredentialStore store = CredentialStore.open(file, 0);
+        store.putIfAbsent("user1", credential("user1"));
+        store.putIfAbsent("user2", credential("user2"));
+        long size = Files.size(file);
+        // A crash halfway through the next record: its length, then part of the body
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.allocate(4 + 10).putInt(0, 60));
+        }
+
+        CredentialStore reopened = CredentialStore.open(file, 0);
+        assertEquals(size, Files.size(file));
+        assertEquals(2, reopened.size());
+        assertStored(reopened, "user2");
+        assertTrue(reopened.putIfAbsent("user3", credential("user3")));
+
+        CredentialStore again = CredentialStore.open(file, 0);
+        assertEquals(3, again.size());
+        assertStored(again, "user1");
+        assertStored(again, "user3");
+    }
+
+    @Test
+    void skipsRecordWithBrokenChecksumAndCompacts() throws IOException {
+        CredentialStore store = CredentialStore.open(file, 0);
+        store.putIfAbsent("user1", credential("user1"));
+        store.putIfAbsent("user2", credential("user2"));
+        store.putIfAbsent("user3", credential("user3"));
+        long record = (Files.size(file) - MAGIC_LENGTH) / 3;
+        // Flip a byte in the hash of user2
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long position = MAGIC_LENGTH + record + record - 8;
+            ByteBuffer b = ByteBuffer.allocate(1);
+            channel.read(b, position);
+            b.put(0, (byte) ~b.get(0)).rewind();
+            channel.write(b, position);
+        }
+
+        CredentialStore reopened = CredentialStore.open(file, 0);
+        assertEquals(2, reopened.size());
+        assertStored(reopened, "user1");
+        assertNull(reopened.get("user2"));
+        assertStored(reopened, "user3");
+        assertEquals(MAGIC_LENGTH + 2 * record, Files.size(file));
+        assertFalse(Files.exists(dir.resolve("users.db.compact")));
+
+        // Compacted records moved, they must still be found and the name is free again
+        assertTrue(reopened.putIfAbsent("user2", credential("user2")));
+        CredentialStore again = CredentialStore.open(file, 0);
+        assertEquals(3, again.size());
+        assertStored(again, "user1");
+        assertStored(again, "user2");
+        assertStored(again, "user3");
+    }
+
+    @Test
+    void compactsWhileAccountsAreRegistered() throws Exception {
+        CredentialStore store = CredentialStore.open(file, 2);
+        int threads = 4;
+        int perThread = 100;
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int first = t * perThread;
+            Thread writer = new Thread(() -> {
+                try {
+                    for (int i = first; i < first + perThread; i++) {
+                        String username = String.format("user%04d", i);
+                        assertTrue(store.putIfAbsent(username, credential(username)));
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+        for (Thread writer : writers) {
+            while (writer.isAlive()) {
+                store.compactNow();
+                writer.join(1);
+            }
+        }
+        if (failure.get() != null) throw new AssertionError(failure.get());
+
+        int total = threads * perThread;
+        assertEquals(total, store.size());
+        for (int i = 0; i < total; i++) {
+            assertStored(store, String.format("user%04d", i));
+        }
+        long size = Files.size(file);
+        store.compactNow();
+        assertEquals(size, Files.size(file));
+
+        CredentialStore reopened = CredentialStore.open(file, 0);
+        assertEquals(total, reopened.size());
+        for (int i = 0; i < total; i++) {
+            assertStored(reopened, String.format("user%04d", i));
+        }
+    }
+}